@@ -0,0 +1,106 @@
+package org.ncgr.intermine.bio.web.displayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+
+import org.intermine.model.InterMineObject;
+
+import org.intermine.objectstore.ObjectStoreException;
+
+import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.config.ReportDisplayerConfig;
+import org.intermine.web.logic.results.ReportObject;
+
+import org.apache.log4j.Logger;
+
+import org.ncgr.intermine.web.logic.CoexpressionIndex;
+import org.ncgr.intermine.web.logic.ExpressionStore;
+import org.ncgr.intermine.web.logic.GeneBarchartUtil;
+
+/**
+ * Display the genes most co-expressed with a gene in one expression source, alongside GeneBarchartDisplayer.
+ * Only sources in the ExpressionStore (expression.store.dir) can be searched; the first is shown, and the others are
+ * fetched from CoexpressionAction when selected. While a source's index is still being built, coexpressionPending is
+ * true and the panel should poll CoexpressionAction.
+ *
+ * web.properties:
+ *   coexpression.topK=K                 the number of genes to show (default 25)
+ *   coexpression.method=pearson|spearman  the correlation measure (default pearson)
+ *   coexpression.maxIndices=N           the number of source indices kept in memory (default 4)
+ *
+ * @author Sam Hokin
+ */
+public class CoexpressionDisplayer extends ReportDisplayer {
+
+    protected static final Logger LOG = Logger.getLogger(CoexpressionDisplayer.class);
+
+    /**
+     * Construct with config and the InterMineAPI.
+     *
+     * @param config to describe the report displayer
+     * @param im the InterMine API
+     */
+    public CoexpressionDisplayer(ReportDisplayerConfig config, InterMineAPI im) {
+        super(config, im);
+    }
+
+    @Override
+    public void display(HttpServletRequest request, ReportObject reportObject) {
+        PathQueryExecutor executor = im.getPathQueryExecutor();
+
+        InterMineObject gene = reportObject.getObject();
+        String geneID;
+        try {
+            geneID = (String) gene.getFieldValue("primaryIdentifier");
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException("Error getting primaryIdentifier.", ex);
+        }
+
+        Properties webProps = (Properties) request.getSession().getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        ExpressionStore store = (webProps==null) ? null : ExpressionStore.getInstance(webProps.getProperty("expression.store.dir"));
+        request.setAttribute("coexpressionSources", Collections.emptyList());
+        request.setAttribute("coexpressedGenes", Collections.emptyList());
+        if (store==null) {
+            request.setAttribute("errorMessage", "Co-expression search needs an expression store; expression.store.dir is not set.");
+            return;
+        }
+        int topK = Integer.parseInt(webProps.getProperty("coexpression.topK", String.valueOf(CoexpressionIndex.DEFAULT_TOP_K)));
+        CoexpressionIndex.Method method = CoexpressionIndex.Method.fromString(webProps.getProperty("coexpression.method"));
+        CoexpressionIndex.setMaxIndices(Integer.parseInt(webProps.getProperty("coexpression.maxIndices", String.valueOf(CoexpressionIndex.DEFAULT_MAX_INDICES))));
+
+        // the sources with values for this gene that are in the store
+        List<String> sources = new ArrayList<>();
+        try {
+            ExportResultsIterator sourcesResult = executor.execute(GeneBarchartUtil.getSourcesQuery(im.getModel(), geneID));
+            while (sourcesResult.hasNext()) {
+                List<ResultElement> row = sourcesResult.next();
+                String source = (String) row.get(0).getField(); // 0 ExpressionValue.sample.source.primaryIdentifier
+                if (store.hasSource(source)) sources.add(source);
+            }
+        } catch (ObjectStoreException e) {
+            LOG.error("Error querying expression sources of "+geneID+": "+e.toString());
+            request.setAttribute("errorMessage", "Error querying expression sources of "+geneID+".");
+            return;
+        }
+        request.setAttribute("coexpressionSources", sources);
+        request.setAttribute("coexpressionTopK", topK);
+        request.setAttribute("coexpressionMethod", method.getName());
+        if (sources.size()==0) return;
+
+        // the index is built in the background the first time a source is searched; until then the panel is pending
+        CoexpressionIndex index = CoexpressionIndex.getInstance(store, sources.get(0), method);
+        request.setAttribute("coexpressionSource", sources.get(0));
+        request.setAttribute("coexpressionPending", index==null);
+        request.setAttribute("coexpressedGenes", (index==null) ? Collections.emptyList() : index.search(geneID, topK));
+    }
+}
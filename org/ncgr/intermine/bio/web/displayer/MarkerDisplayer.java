@@ -2,8 +2,10 @@ package org.ncgr.intermine.bio.web.displayer;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.LinkedHashMap;
+import java.util.Properties;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -21,6 +23,7 @@ import org.intermine.pathquery.OrderDirection;
 import org.intermine.pathquery.PathQuery;
 
 import org.intermine.web.displayer.ReportDisplayer;
+import org.intermine.web.logic.Constants;
 import org.intermine.web.logic.config.ReportDisplayerConfig;
 import org.intermine.web.logic.results.ReportObject;
 
@@ -28,6 +31,9 @@ import org.apache.log4j.Logger;
 
 import org.json.JSONObject;
 
+import org.ncgr.intermine.web.logic.GenotypeStore;
+import org.ncgr.intermine.web.logic.PackedGenotypeMatrix;
+
 /**
  * Generate the genotyping lines and values for each genotyping study containing the given marker.
  *
@@ -61,6 +67,7 @@ public class MarkerDisplayer extends ReportDisplayer {
         Map<String,Map<String,String>> genotypingStudyMap = new LinkedHashMap<String,Map<String,String>>();
         Map<String,String> genotypingStudyDescriptions = new LinkedHashMap<String,String>();
         Map<String,String> genotypingStudyMatrixNotes = new LinkedHashMap<String,String>();
+        Map<String,PackedGenotypeMatrix> genotypingStudyMatrices = new LinkedHashMap<String,PackedGenotypeMatrix>();
         
         // query the genotypingStudies that contain this marker
         PathQuery gsQuery = new PathQuery(im.getModel());
@@ -81,8 +88,31 @@ public class MarkerDisplayer extends ReportDisplayer {
             genotypingStudyMatrixNotes.put(primaryIdentifier, matrixNotes);
         }
         
+        // studies exported to the genotype store are read from it rather than queried
+        Properties webProps = (Properties) request.getSession().getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        GenotypeStore store = (webProps==null) ? null : GenotypeStore.getInstance(webProps.getProperty("genotype.store.dir"));
+        String markerPrimaryID;
+        try {
+            markerPrimaryID = (String) marker.getFieldValue("primaryIdentifier");
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException("Error getting primaryIdentifier.", ex);
+        }
+
         // query lines and values for each genotypingStudy, load results in a big map of maps
         for (String genotypingStudy : genotypingStudies) {
+            GenotypeStore.Matrix stored = (store==null) ? null : store.getMatrix(GenotypeStore.Kind.STUDY, genotypingStudy);
+            int i = (stored==null) ? -1 : stored.getMarkerIndex(markerPrimaryID);
+            if (i>=0) {
+                // slice out the lines that have a call for this marker, as the query would return
+                List<String> calledLines = new ArrayList<String>();
+                for (int j=0; j<stored.getLines().size(); j++) {
+                    if (stored.getValue(i, j)!=null) calledLines.add(stored.getLines().get(j));
+                }
+                PackedGenotypeMatrix matrix = stored.slice(Collections.singletonList(markerPrimaryID), calledLines);
+                genotypingStudyMatrices.put(genotypingStudy, matrix);
+                genotypingStudyMap.put(genotypingStudy, matrix.getLineValues(0));
+                continue;
+            }
             PathQuery gvQuery = new PathQuery(im.getModel());
             gvQuery.addViews(
                              "GenotypeValue.value",
@@ -92,19 +122,26 @@ public class MarkerDisplayer extends ReportDisplayer {
             gvQuery.addConstraint(Constraints.eq("GenotypeValue.marker.genotypingStudies.primaryIdentifier", genotypingStudy));
             gvQuery.addOrderBy("GenotypeValue.line.primaryIdentifier", OrderDirection.ASC);
             ExportResultsIterator gvResult = getResults(executor, gvQuery);
-            Map<String,String> valuesMap = new LinkedHashMap<String,String>();
+            List<String> lines = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
             while (gvResult.hasNext()) {
                 List<ResultElement> row = gvResult.next();
-                String value = (String) row.get(0).getField();
-                String line = (String) row.get(1).getField();
-                valuesMap.put(line, value);
+                values.add((String) row.get(0).getField());
+                lines.add((String) row.get(1).getField());
+            }
+            // pack the study's single row of calls; the JSP reads the line to value map view of it
+            PackedGenotypeMatrix matrix = new PackedGenotypeMatrix(Collections.singletonList(markerPrimaryID), lines);
+            for (int j=0; j<lines.size(); j++) {
+                matrix.set(0, j, values.get(j));
             }
-            genotypingStudyMap.put(genotypingStudy, valuesMap);
+            genotypingStudyMatrices.put(genotypingStudy, matrix);
+            genotypingStudyMap.put(genotypingStudy, matrix.getLineValues(0));
         }
         
         // output results to HTTP request
         request.setAttribute("marker", marker);
         request.setAttribute("genotypingStudyMap", genotypingStudyMap);
+        request.setAttribute("genotypingStudyMatrices", genotypingStudyMatrices);
         request.setAttribute("genotypingStudyDescriptions", genotypingStudyDescriptions);
         request.setAttribute("genotypingStudyMatrixNotes", genotypingStudyMatrixNotes);
     }
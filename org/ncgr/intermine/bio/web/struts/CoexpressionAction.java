@@ -0,0 +1,128 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.struts.InterMineAction;
+
+import org.json.JSONWriter;
+
+import org.ncgr.intermine.web.logic.CoexpressionIndex;
+import org.ncgr.intermine.web.logic.CoexpressionIndex.Neighbor;
+import org.ncgr.intermine.web.logic.ExpressionStore;
+
+/**
+ * Returns the genes most co-expressed with a gene in one expression source, for the sources that
+ * CoexpressionDisplayer doesn't show up front. The output is
+ * <pre>
+ * {"gene":..,"source":..,"method":..,"pending":false,"genes":[{"primaryIdentifier":..,"name":..,"correlation":..},...]}
+ * </pre>
+ * or, with status 202, {"gene":..,"source":..,"method":..,"pending":true} while the source's index is being built.
+ *
+ * Parameters:
+ *   gene   - the Gene.primaryIdentifier
+ *   source - the ExpressionSource.primaryIdentifier, which must be in the ExpressionStore
+ *   k      - (optional) the number of genes, default coexpression.topK, at most MAX_K
+ *   method - (optional) pearson or spearman, default coexpression.method
+ *
+ * @author Sam Hokin
+ */
+public class CoexpressionAction extends InterMineAction {
+
+    static final int MAX_K = 1000;
+
+    /**
+     * Write the co-expressed genes to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        String geneID = request.getParameter("gene");
+        String source = request.getParameter("source");
+        if (geneID==null || geneID.trim().length()==0 || source==null || source.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Both gene and source parameters are required.");
+            return null;
+        }
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        ExpressionStore store = (webProps==null) ? null : ExpressionStore.getInstance(webProps.getProperty("expression.store.dir"));
+        if (store==null) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "expression.store.dir is not set to a directory.");
+            return null;
+        }
+        int k = Integer.parseInt(webProps.getProperty("coexpression.topK", String.valueOf(CoexpressionIndex.DEFAULT_TOP_K)));
+        String kParam = request.getParameter("k");
+        if (kParam!=null) {
+            try {
+                k = Integer.parseInt(kParam.trim());
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Non-integer k parameter: "+kParam);
+                return null;
+            }
+        }
+        if (k<1 || k>MAX_K) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "k must be between 1 and "+MAX_K+".");
+            return null;
+        }
+        String methodName = request.getParameter("method");
+        if (methodName==null) methodName = webProps.getProperty("coexpression.method");
+        CoexpressionIndex.Method method = CoexpressionIndex.Method.fromString(methodName);
+        CoexpressionIndex.setMaxIndices(Integer.parseInt(webProps.getProperty("coexpression.maxIndices", String.valueOf(CoexpressionIndex.DEFAULT_MAX_INDICES))));
+
+        if (!store.hasSource(source)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Source "+source+" is not in the expression store.");
+            return null;
+        }
+        CoexpressionIndex index = CoexpressionIndex.getInstance(store, source, method);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        JSONWriter writer = new JSONWriter(out);
+        if (index==null) {
+            // still being built in the background; the client polls
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            writer.object();
+            writer.key("gene").value(geneID);
+            writer.key("source").value(source);
+            writer.key("method").value(method.getName());
+            writer.key("pending").value(true);
+            writer.endObject();
+            out.flush();
+            return null;
+        }
+        List<Neighbor> neighbors = index.search(geneID, k);
+        writer.object();
+        writer.key("gene").value(geneID);
+        writer.key("source").value(source);
+        writer.key("method").value(method.getName());
+        writer.key("pending").value(false);
+        writer.key("genes");
+        writer.array();
+        for (Neighbor neighbor : neighbors) {
+            writer.object();
+            writer.key("primaryIdentifier").value(neighbor.getPrimaryIdentifier());
+            writer.key("name").value(neighbor.getName());
+            writer.key("correlation").value(neighbor.getCorrelation());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        out.flush();
+        return null;
+    }
+}
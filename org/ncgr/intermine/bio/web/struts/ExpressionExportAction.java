@@ -0,0 +1,110 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.log4j.Logger;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.ncgr.intermine.web.logic.ExpressionExportUtil;
+import org.ncgr.intermine.web.logic.ExpressionSampleCache;
+
+/**
+ * Streams the expression values of a whole ExpressionSource, or a gene list's slice of it, as a gzip-compressed
+ * TSV download, written row by row as the values arrive. See ExpressionExportUtil for the layouts.
+ *
+ * Parameters:
+ *   source - the ExpressionSource.primaryIdentifier
+ *   bag    - (optional) the name of a gene list to restrict the export to
+ *   layout - (optional) wide (genes x samples, the default) or long (gene, sample, value)
+ *   gzip   - (optional) false for plain text, default true
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionExportAction extends InterMineAction {
+    private static final Logger LOG = Logger.getLogger(ExpressionExportAction.class);
+
+    /**
+     * Write the export to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        String source = request.getParameter("source");
+        if (source==null || source.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The source parameter is required.");
+            return null;
+        }
+        String bagName = request.getParameter("bag");
+        InterMineBag bag = null;
+        if (bagName!=null && bagName.trim().length()>0) {
+            bag = im.getBagManager().getBag(profile, bagName);
+            if (bag==null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "List not found: "+bagName);
+                return null;
+            }
+            if (!bag.getType().toLowerCase().equals("gene")) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "List "+bagName+" is not a list of genes.");
+                return null;
+            }
+        }
+        String layout = request.getParameter("layout");
+        if (layout!=null && !layout.equals("wide") && !layout.equals("long")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "layout must be wide or long.");
+            return null;
+        }
+        boolean wide = (layout==null || layout.equals("wide"));
+        boolean gzip = (request.getParameter("gzip")==null) || Boolean.parseBoolean(request.getParameter("gzip"));
+
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        ExpressionSampleCache sampleCache = ExpressionSampleCache.getInstance(webProps);
+        if (sampleCache.get(executor, im.getModel(), source)==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No samples for source "+source+".");
+            return null;
+        }
+
+        String fileName = source.replaceAll("[^A-Za-z0-9._-]", "_")+((bag==null) ? "" : "."+bag.getName().replaceAll("[^A-Za-z0-9._-]", "_"))+".tsv";
+        response.setContentType(gzip ? "application/gzip" : "text/tab-separated-values");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\""+fileName+(gzip ? ".gz" : "")+"\"");
+        GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(response.getOutputStream(), 64*1024) : null;
+        Writer out = gzip ? new OutputStreamWriter(gzipStream, StandardCharsets.UTF_8) : response.getWriter();
+        try {
+            int geneCount = ExpressionExportUtil.writeTSV(executor, im.getModel(), sampleCache, source, bag, wide, out);
+            if (gzipStream!=null) gzipStream.finish();
+            out.flush();
+            LOG.info("Exported "+geneCount+" genes of "+source+((bag==null) ? "" : " for list "+bag.getName())+".");
+        } catch (Exception e) {
+            // the response is probably committed by now, so all we can do is log and stop
+            LOG.error("Error exporting expression source "+source+": "+e.toString());
+            throw e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.ncgr.intermine.web.logic.ExpressionStoreBuilder;
+import org.ncgr.intermine.web.logic.StoreExportJobs;
+
+/**
+ * Exports expression sources into the memory-mapped ExpressionStore in the expression.store.dir directory.
+ * Run once after each mine release; restricted to the superuser. The export runs as a background StoreExportJobs
+ * job: the response is the job's status JSON, and the page polls with the job parameter until it's done.
+ *
+ * Parameters:
+ *   source - (optional) the primaryIdentifier of a single ExpressionSource; all sources are exported if absent
+ *   job    - (optional) the id of a running export, to report its status instead of starting a new one
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionStoreAction extends InterMineAction {
+
+    /**
+     * Start the export, or report the status of a running one.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        if (profile==null || !profile.isSuperuser()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Only the superuser may build the expression store.");
+            return null;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        String jobID = request.getParameter("job");
+        if (jobID!=null) {
+            StoreExportJobs.Job job = StoreExportJobs.getInstance().getJob(jobID);
+            if (job==null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Export job not found: "+jobID);
+                return null;
+            }
+            PrintWriter out = response.getWriter();
+            out.write(job.toJSON());
+            out.flush();
+            return null;
+        }
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        String dirName = webProps.getProperty("expression.store.dir");
+        if (dirName==null || !new File(dirName).isDirectory()) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "expression.store.dir is not set to a directory.");
+            return null;
+        }
+        final File dir = new File(dirName);
+        final PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+        final Model model = im.getModel();
+        String sourceParam = request.getParameter("source");
+        final String source = (sourceParam==null || sourceParam.trim().length()==0) ? null : sourceParam.trim();
+        StoreExportJobs.Job job = StoreExportJobs.getInstance().submit("expression "+((source==null) ? "all sources" : source)+" to "+dir,
+                                                                        new StoreExportJobs.Export() {
+            @Override
+            public void run(StoreExportJobs.Job job) throws Exception {
+                List<String> sources = (source==null) ? ExpressionStoreBuilder.getSources(executor, model) : Collections.singletonList(source);
+                job.setTotal(sources.size());
+                for (String s : sources) {
+                    try {
+                        ExpressionStoreBuilder.build(executor, model, s, dir);
+                        job.exported(s);
+                    } catch (ObjectStoreException|IOException e) {
+                        job.failed(s, e.toString());
+                    }
+                }
+            }
+        });
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        PrintWriter out = response.getWriter();
+        out.write(job.toJSON());
+        out.flush();
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.json.JSONObject;
+
+import org.ncgr.intermine.web.logic.ExpressionEncoding;
+import org.ncgr.intermine.web.logic.ExpressionSampleCache;
+import org.ncgr.intermine.web.logic.ExpressionStore;
+import org.ncgr.intermine.web.logic.GeneBarchartUtil;
+import org.ncgr.intermine.web.logic.GeneBarchartUtil.SourceChart;
+
+/**
+ * Returns the expression bar chart of a gene for a single source, so the gene report page can load the sources that
+ * GeneBarchartDisplayer leaves out when the user selects them. The output is
+ * <pre>
+ * {"identifier":..,"unit":..,"chart":{"x":{...},"y":{...}},"descriptions":{...},"tissues":{...},"treatments":{...},"genotypes":{...}}
+ * </pre>
+ *
+ * Parameters:
+ *   gene     - the Gene.primaryIdentifier
+ *   source   - the ExpressionSource.primaryIdentifier
+ *   encoding - (optional) json, float32 or uint16, default barchart.encoding
+ *   aggregate - (optional) true for one bar per replicate group with its SD and n, false for every sample's value,
+ *               default barchart.aggregate
+ *
+ * @author Sam Hokin
+ */
+public class GeneBarchartAction extends InterMineAction {
+
+    /**
+     * Write the bar chart JSON for the requested gene and source to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        String geneID = request.getParameter("gene");
+        String source = request.getParameter("source");
+        if (geneID==null || geneID.trim().length()==0 || source==null || source.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Both gene and source parameters are required.");
+            return null;
+        }
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        ExpressionEncoding.Type encoding = GeneBarchartUtil.getEncoding(webProps, request.getParameter("encoding"));
+        boolean aggregate = GeneBarchartUtil.isAggregate(webProps, request.getParameter("aggregate"));
+
+        // the store, if there is one, has the sorted sample values for percentile ranks
+        ExpressionStore store = (webProps==null) ? null : ExpressionStore.getInstance(webProps.getProperty("expression.store.dir"));
+
+        List<SourceChart> charts = GeneBarchartUtil.getCharts(executor, im.getModel(), ExpressionSampleCache.getInstance(webProps), store, geneID, source);
+        if (charts.size()==0) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No expression values for "+geneID+" in "+source+".");
+            return null;
+        }
+        SourceChart chart = charts.get(0);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        out.write("{\"identifier\":"+JSONObject.quote(chart.getIdentifier()));
+        out.write(",\"unit\":"+JSONObject.quote(chart.getUnit()));
+        out.write(",\"chart\":"+chart.toBarchartJSON(geneID, encoding, aggregate));
+        out.write(",\"descriptions\":"+chart.getDescriptionsJSON());
+        out.write(",\"tissues\":"+chart.getTissuesJSON());
+        out.write(",\"treatments\":"+chart.getTreatmentsJSON());
+        out.write(",\"genotypes\":"+chart.getGenotypesJSON());
+        out.write("}");
+        out.flush();
+        return null;
+    }
+}
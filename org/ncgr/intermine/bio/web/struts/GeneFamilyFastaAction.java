@@ -0,0 +1,82 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.log4j.Logger;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.GeneFamilyFastaUtil;
+
+/**
+ * Streams the multi-FASTA of a list's sequences in a gene family, for the ANNOTATE button, which gets only the family
+ * counts and descriptions from AnnotationController. Residues are copied from the database a chunk at a time.
+ *
+ * Parameters:
+ *   bag    - the name of a list of CDSes, Transcripts, MRNAs or Proteins
+ *   family - (optional) the GeneFamily.primaryIdentifier; every family if absent
+ *
+ * @author Sam Hokin
+ */
+public class GeneFamilyFastaAction extends InterMineAction {
+    private static final Logger LOG = Logger.getLogger(GeneFamilyFastaAction.class);
+
+    /**
+     * Write the multi-FASTA to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        String bagName = request.getParameter("bag");
+        if (bagName==null || bagName.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The bag parameter is required.");
+            return null;
+        }
+        InterMineBag bag = im.getBagManager().getBag(profile, bagName);
+        if (bag==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "List not found: "+bagName);
+            return null;
+        }
+        if (!GeneFamilyFastaUtil.isSupportedType(bag.getType())) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "List "+bagName+" is not a list of CDSes, Transcripts, MRNAs or Proteins.");
+            return null;
+        }
+        String family = request.getParameter("family");
+        if (family!=null && family.trim().length()==0) family = null;
+
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        try {
+            int count = GeneFamilyFastaUtil.writeFasta(executor, im.getModel(), BagIds.get(request, bag), family, out);
+            LOG.info("Wrote "+count+" sequences of list "+bag.getName()+((family==null) ? "" : " in gene family "+family)+".");
+        } catch (Exception e) {
+            // the response is probably committed by now, so all we can do is log and stop
+            LOG.error("Error writing FASTA of list "+bag.getName()+": "+e.toString());
+            throw e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.log4j.Logger;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.GenotypeStore;
+import org.ncgr.intermine.web.logic.GenotypeStreamUtil;
+
+/**
+ * Streams the genotypes of a list of markers, population by population, as newline-delimited JSON, so the genotype
+ * chart can draw each population as it arrives instead of waiting for MarkerGenotypesController to assemble them all.
+ * See GenotypeStreamUtil for the line format.
+ *
+ * Parameters:
+ *   bag - the name of a list of genetic markers
+ *
+ * @author Sam Hokin
+ */
+public class GenotypeStreamAction extends InterMineAction {
+    private static final Logger LOG = Logger.getLogger(GenotypeStreamAction.class);
+
+    /**
+     * Write the genotypes to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        String bagName = request.getParameter("bag");
+        if (bagName==null || bagName.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The bag parameter is required.");
+            return null;
+        }
+        InterMineBag bag = im.getBagManager().getBag(profile, bagName);
+        if (bag==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "List not found: "+bagName);
+            return null;
+        }
+        if (!bag.getType().equals("GeneticMarker")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "List "+bagName+" is not a list of genetic markers.");
+            return null;
+        }
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        GenotypeStore store = (webProps==null) ? null : GenotypeStore.getInstance(webProps.getProperty("genotype.store.dir"));
+
+        long start = System.currentTimeMillis();
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        try {
+            int rows = GenotypeStreamUtil.writeNDJSON(executor, im.getModel(), store, BagIds.get(request, bag), out);
+            LOG.info("Streamed "+rows+" genotype rows for list "+bag.getName()+" in "+(System.currentTimeMillis()-start)+" ms.");
+        } catch (Exception e) {
+            // the response is probably committed by now, so all we can do is log and stop
+            LOG.error("Error streaming genotypes for list "+bag.getName()+": "+e.toString());
+            throw e;
+        }
+        return null;
+    }
+}
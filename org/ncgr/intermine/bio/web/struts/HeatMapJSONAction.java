@@ -0,0 +1,126 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.log4j.Logger;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.json.JSONObject;
+
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.ExpressionEncoding;
+import org.ncgr.intermine.web.logic.HeatMapCache;
+import org.ncgr.intermine.web.logic.HeatMapOptions;
+import org.ncgr.intermine.web.logic.HeatMapUtil;
+import org.ncgr.intermine.web.logic.HeatMapUtil.SourcePayload;
+
+/**
+ * Streams the CanvasXpress heat map JSON for a list of genes straight to the response as the expression values arrive,
+ * rather than building the full matrix in request attributes.
+ *
+ * Parameters:
+ *   bag    - the name of the gene list
+ *   source - (optional) the primaryIdentifier of a single ExpressionSource
+ *   encoding - (optional) json, float32 or uint16, default heatmap.encoding; see ExpressionEncoding.
+ *              Compact encodings return {"encoding":..,"sources":[payload,...]} as written by HeatMapUtil.writePayload.
+ *   aggregate - (optional) true for one column per replicate group, the mean of its samples; default heatmap.aggregate.
+ *               Aggregated sources are returned as payloads like the compact encodings.
+ *   cacheStats - (optional) if present, return the HeatMapCache hit/miss counters instead
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapJSONAction extends InterMineAction {
+    private static final Logger LOG = Logger.getLogger(HeatMapJSONAction.class);
+
+    /**
+     * Write the heat map JSON for the requested bag and source(s) to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        if (request.getParameter("cacheStats")!=null) {
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter out = response.getWriter();
+            out.write(new JSONObject(HeatMapCache.getInstance().getStats()).toString());
+            out.flush();
+            return null;
+        }
+
+        String bagName = request.getParameter("bag");
+        String source = request.getParameter("source");
+        InterMineBag bag = (bagName==null) ? null : im.getBagManager().getBag(profile, bagName);
+        if (bag==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "List not found: "+bagName);
+            return null;
+        }
+        if (!bag.getType().toLowerCase().equals("gene")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "List "+bagName+" is not a list of genes.");
+            return null;
+        }
+        List<String> sources = (source==null || source.trim().length()==0) ? null : Collections.singletonList(source);
+
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        HeatMapOptions options = HeatMapOptions.fromWebProperties(webProps);
+        if (request.getParameter("encoding")!=null) {
+            options.setEncoding(ExpressionEncoding.Type.fromString(request.getParameter("encoding")));
+        }
+        if (request.getParameter("aggregate")!=null) {
+            options.setAggregate(Boolean.parseBoolean(request.getParameter("aggregate")));
+        }
+
+        BagIds bagIds = BagIds.get(request, bag);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        try {
+            if (options.getEncoding()==ExpressionEncoding.Type.JSON && !options.isAggregate()) {
+                HeatMapUtil.writeJSON(executor, im.getModel(), bagIds, sources, options.getSampleCache(), out);
+            } else {
+                // encoded blocks and group means need the whole source matrix, so these are built as payloads and written one per source
+                Map<String,SourcePayload> payloads = HeatMapUtil.getPayloads(executor, im.getModel(), bagIds, sources, options);
+                out.write("{\"encoding\":"+JSONObject.quote(options.getEncoding().getName())+",\"sources\":[");
+                boolean first = true;
+                for (SourcePayload payload : payloads.values()) {
+                    if (!first) out.write(',');
+                    first = false;
+                    HeatMapUtil.writePayload(payload, out);
+                }
+                out.write("]}");
+                out.flush();
+            }
+        } catch (Exception e) {
+            // the response is probably committed by now, so all we can do is log and stop
+            LOG.error("Error streaming heat map JSON for list "+bagName+": "+e.toString());
+            throw e;
+        }
+        return null;
+    }
+}
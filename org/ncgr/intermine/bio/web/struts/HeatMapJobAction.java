@@ -0,0 +1,90 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.web.struts.InterMineAction;
+
+import org.json.JSONObject;
+
+import org.ncgr.intermine.web.logic.HeatMapJobs;
+import org.ncgr.intermine.web.logic.HeatMapUtil;
+import org.ncgr.intermine.web.logic.HeatMapUtil.SourcePayload;
+
+/**
+ * Returns the progress of a background heat map job started by HeatMapController, along with the source payloads that
+ * have finished since the last poll. The output is
+ * <pre>
+ * {"job":..,"done":..,"sourceCount":..,"finishedCount":..,"errors":[...],
+ *  "sources":[{"primaryIdentifier":..,"source":{...},"expression":{"y":{...}},"descriptions":{...},
+ *              "genes":{name:{"primaryIdentifier":..,"description":..},...}}, ...]}
+ * </pre>
+ *
+ * Parameters:
+ *   job   - the job id, set by HeatMapController in the heatMapJob request attribute
+ *   since - (optional) the number of sources the page already has, default 0
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapJobAction extends InterMineAction {
+
+    /**
+     * Write the job progress and newly finished sources to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HeatMapJobs.Job job = HeatMapJobs.getInstance(HeatMapJobs.DEFAULT_THREADS).getJob(request.getParameter("job"));
+        if (job==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Heat map job not found: "+request.getParameter("job"));
+            return null;
+        }
+        int since = 0;
+        String sinceParam = request.getParameter("since");
+        if (sinceParam!=null) {
+            try {
+                since = Integer.parseInt(sinceParam.trim());
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Non-integer since parameter: "+sinceParam);
+                return null;
+            }
+        }
+        // read done before the payloads so a done response never misses one
+        boolean done = job.isDone();
+        List<SourcePayload> payloads = job.getFinished(since);
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = response.getWriter();
+        out.write("{\"job\":"+JSONObject.quote(job.getId()));
+        out.write(",\"done\":"+done);
+        out.write(",\"sourceCount\":"+job.getSources().size());
+        out.write(",\"finishedCount\":"+(Math.max(since, 0)+payloads.size()));
+        out.write(",\"errors\":[");
+        List<String> errors = job.getErrors();
+        for (int i=0; i<errors.size(); i++) {
+            if (i>0) out.write(',');
+            out.write(JSONObject.quote(errors.get(i)));
+        }
+        out.write("],\"sources\":[");
+        for (int i=0; i<payloads.size(); i++) {
+            if (i>0) out.write(',');
+            HeatMapUtil.writePayload(payloads.get(i), out);
+        }
+        out.write("]}");
+        out.flush();
+        return null;
+    }
+}
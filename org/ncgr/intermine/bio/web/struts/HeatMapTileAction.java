@@ -0,0 +1,169 @@
+package org.ncgr.intermine.bio.web.struts;
+
+import java.io.PrintWriter;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.log4j.Logger;
+import org.apache.struts.action.ActionForm;
+import org.apache.struts.action.ActionForward;
+import org.apache.struts.action.ActionMapping;
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.web.logic.Constants;
+import org.intermine.web.logic.session.SessionMethods;
+import org.intermine.web.struts.InterMineAction;
+
+import org.json.JSONWriter;
+
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.ExpressionMatrix;
+import org.ncgr.intermine.web.logic.HeatMapCache;
+import org.ncgr.intermine.web.logic.HeatMapOptions;
+import org.ncgr.intermine.web.logic.HeatMapUtil;
+
+/**
+ * Serves a large heat map in pieces: a downsampled overview of a source's whole genes x samples matrix, and
+ * full-resolution tiles of a requested window. The matrix is built once per bag and source and kept in HeatMapCache,
+ * so zooming and panning only serialize the visible region.
+ *
+ * Parameters:
+ *   bag         - the name of the gene list
+ *   source      - the primaryIdentifier of the ExpressionSource
+ *   overview    - (optional) if present, return the overview rather than a tile
+ *   maxGenes    - (overview) the maximum number of block rows, default 200
+ *   maxSamples  - (overview) the maximum number of block columns, default 200
+ *   geneStart   - (tile) the first gene row, default 0
+ *   geneCount   - (tile) the number of gene rows, default 100
+ *   sampleStart - (tile) the first sample column, default 0
+ *   sampleCount - (tile) the number of sample columns, default all
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapTileAction extends InterMineAction {
+    private static final Logger LOG = Logger.getLogger(HeatMapTileAction.class);
+
+    static final int DEFAULT_OVERVIEW_SIZE = 200;
+    static final int DEFAULT_TILE_GENES = 100;
+    static final int MAX_OVERVIEW_SIZE = 2000;
+    static final long MAX_TILE_VALUES = 1000000L;
+
+    /**
+     * Write the overview or tile JSON for the requested bag and source to the response.
+     * @param mapping The ActionMapping used to select this instance
+     * @param form The optional ActionForm bean for this request (if any)
+     * @param request The HTTP request we are processing
+     * @param response The HTTP response we are creating
+     * @return null, since the response has been written
+     * @exception Exception if the application business logic throws an exception
+     */
+    @Override
+    public ActionForward execute(ActionMapping mapping, ActionForm form, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        HttpSession session = request.getSession();
+        final InterMineAPI im = SessionMethods.getInterMineAPI(session);
+        Profile profile = SessionMethods.getProfile(session);
+        PathQueryExecutor executor = im.getPathQueryExecutor(profile);
+
+        String bagName = request.getParameter("bag");
+        String source = request.getParameter("source");
+        InterMineBag bag = (bagName==null) ? null : im.getBagManager().getBag(profile, bagName);
+        if (bag==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "List not found: "+bagName);
+            return null;
+        }
+        if (!bag.getType().toLowerCase().equals("gene")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "List "+bagName+" is not a list of genes.");
+            return null;
+        }
+        if (source==null || source.trim().length()==0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing source parameter.");
+            return null;
+        }
+
+        int maxGenes, maxSamples, geneStart, geneCount, sampleStart, sampleCount;
+        try {
+            maxGenes = getIntParameter(request, "maxGenes", DEFAULT_OVERVIEW_SIZE);
+            maxSamples = getIntParameter(request, "maxSamples", DEFAULT_OVERVIEW_SIZE);
+            geneStart = getIntParameter(request, "geneStart", 0);
+            geneCount = getIntParameter(request, "geneCount", DEFAULT_TILE_GENES);
+            sampleStart = getIntParameter(request, "sampleStart", 0);
+            sampleCount = getIntParameter(request, "sampleCount", Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Non-integer parameter: "+e.getMessage());
+            return null;
+        }
+        if (maxGenes<1 || maxSamples<1 || maxGenes>MAX_OVERVIEW_SIZE || maxSamples>MAX_OVERVIEW_SIZE) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "maxGenes and maxSamples must be between 1 and "+MAX_OVERVIEW_SIZE+".");
+            return null;
+        }
+        if (geneStart<0 || geneCount<1 || sampleStart<0 || sampleCount<1) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Tile start must be non-negative and count positive.");
+            return null;
+        }
+
+        // the full matrix is cached alongside the payloads
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        HeatMapOptions options = HeatMapOptions.fromWebProperties(webProps);
+        HeatMapCache cache = HeatMapCache.getInstance();
+        cache.setMaxBytes(options.getCacheMaxBytes());
+        BagIds bagIds = BagIds.get(request, bag);
+        String key = HeatMapCache.getKey(bagIds.getContentsKey(), source, options.getExpressionStore(),
+                                         "matrix-"+(options.isCluster() ? "clustered-"+options.getClusterMaxGenes() : "plain")
+                                         +(options.isAggregate() ? "-aggregated" : ""));
+        ExpressionMatrix matrix = cache.get(key, ExpressionMatrix.class);
+        if (matrix==null) {
+            matrix = HeatMapUtil.getMatrix(executor, im.getModel(), bagIds, source, options);
+            if (matrix==null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "No expression values in source "+source+" for list "+bagName+".");
+                return null;
+            }
+            cache.put(key, matrix, matrix.getBytes());
+        }
+        int tileGenes = Math.min(geneCount, Math.max(matrix.getGeneCount()-geneStart, 0));
+        int tileSamples = Math.min(sampleCount, Math.max(matrix.getSampleCount()-sampleStart, 0));
+        if ((long) tileGenes*tileSamples>MAX_TILE_VALUES) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Tiles are limited to "+MAX_TILE_VALUES+" values.");
+            return null;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("primaryIdentifier").value(source);
+        writer.key("geneCount").value(matrix.getGeneCount());
+        writer.key("sampleCount").value(matrix.getSampleCount());
+        if (request.getParameter("overview")!=null) {
+            writer.key("overview");
+            matrix.writeOverview(writer, maxGenes, maxSamples);
+        } else {
+            writer.key("geneStart").value(geneStart);
+            writer.key("sampleStart").value(sampleStart);
+            writer.key("y");
+            matrix.writeTile(writer, geneStart, geneCount, sampleStart, sampleCount);
+        }
+        writer.endObject();
+        out.flush();
+        LOG.debug(cache);
+        return null;
+    }
+
+    /**
+     * Parse an optional integer request parameter.
+     */
+    static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value==null || value.trim().length()==0) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException(name+"="+value);
+        }
+    }
+}
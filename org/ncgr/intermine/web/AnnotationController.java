@@ -36,14 +36,14 @@ import org.intermine.api.results.ResultElement;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.objectstore.query.ClobAccess;
-import org.intermine.pathquery.Constraints;
-import org.intermine.pathquery.OrderDirection;
 import org.intermine.pathquery.PathQuery;
 import org.intermine.web.logic.session.SessionMethods;
 
 import org.json.JSONObject;
 
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.GeneFamilyFastaUtil;
+
 /**
  * Class that generates ANNOTATE button data on a list of CDSes, Transcripts/MRNAs, or Proteins.
  *
@@ -67,72 +67,19 @@ public class AnnotationController extends TilesAction {
 
         // check that we've got a list of CDSes, Transcripts, MRNAs, or Proteins
         String bagType = bag.getType();
-        if (!bagType.equals("CDS") && !bagType.equals("Transcript") && !bagType.equals("MRNA") && !bagType.equals("Protein")) {
+        if (!GeneFamilyFastaUtil.isSupportedType(bagType)) {
             String errorMessage = "ERROR: AnnotationController called on a bag of type "+bagType+".";
             request.setAttribute("errorMessage", errorMessage);
             throw new RuntimeException(errorMessage);
         }
 
-        // for the bagType-dependent query
-        PathQuery query = new PathQuery(model);
-        String sequenceType = null;
-        if (bagType.equals("CDS")) {
-            // CDS
-            sequenceType = "n";
-            query.addView("CDS.primaryIdentifier");           // 0
-            query.addView("CDS.sequence.residues");           // 1
-            query.addView("CDS.gene.geneFamilyAssignments.geneFamily.primaryIdentifier");  // 2
-            query.addView("CDS.gene.geneFamilyAssignments.geneFamily.description"); // 3
-            query.addOrderBy("CDS.gene.geneFamilyAssignments.geneFamily.primaryIdentifier", OrderDirection.ASC);
-            query.addOrderBy("CDS.primaryIdentifier", OrderDirection.ASC);
-            query.addConstraint(Constraints.in("CDS", bag.getName()));
-        } else if (bagType.equals("MRNA")) {
-            // MRNA
-            sequenceType = "n";
-            query.addView("MRNA.primaryIdentifier");           // 0
-            query.addView("MRNA.sequence.residues");           // 1
-            query.addView("MRNA.gene.geneFamilyAssignments.geneFamily.primaryIdentifier");  // 2
-            query.addView("MRNA.gene.geneFamilyAssignments.geneFamily.description"); // 3
-            query.addOrderBy("MRNA.gene.geneFamilyAssignments.geneFamily.primaryIdentifier", OrderDirection.ASC);
-            query.addOrderBy("MRNA.primaryIdentifier", OrderDirection.ASC);
-            query.addConstraint(Constraints.in("MRNA", bag.getName()));
-        } else if (bagType.equals("Transcript")) {
-            // Transcript
-            sequenceType = "n";
-            query.addView("Transcript.primaryIdentifier");           // 0
-            query.addView("Transcript.sequence.residues");           // 1
-            query.addView("Transcript.gene.geneFamily.primaryIdentifier");  // 2
-            query.addView("Transcript.gene.geneFamily.description"); // 3
-            query.addOrderBy("Transcript.gene.geneFamily.primaryIdentifier", OrderDirection.ASC);
-            query.addOrderBy("Transcript.primaryIdentifier", OrderDirection.ASC);
-            query.addConstraint(Constraints.in("Transcript", bag.getName()));
-        } else if (bagType.equals("Protein")) {
-            // Protein
-            sequenceType = "p";
-            query.addView("Protein.primaryIdentifier");      // 0
-            query.addView("Protein.sequence.residues");      // 1
-            query.addView("Protein.geneFamilyAssignments.geneFamily.primaryIdentifier");  // 2
-            query.addView("Protein.geneFamilyAssignments.geneFamily.description"); // 3
-            query.addOrderBy("Protein.geneFamilyAssignments.geneFamily.primaryIdentifier", OrderDirection.ASC);
-            query.addOrderBy("Protein.primaryIdentifier", OrderDirection.ASC);
-            query.addConstraint(Constraints.in("Protein", bag.getName()));
-        }
-        // verify the query
-        List<String> verifyList = query.verifyQuery();
-        if (!verifyList.isEmpty()) {
-            String errorMessage = "ERROR: AnnotationController query invalid: "+verifyList;
-            request.setAttribute("errorMessage", errorMessage);
-            throw new RuntimeException(errorMessage);
-        }
+        // the families query leaves out residues; each family's multi-FASTA is streamed by GeneFamilyFastaAction
+        BagIds bagIds = BagIds.get(request, bag);
+        PathQuery query = GeneFamilyFastaUtil.getFamiliesQuery(model, bagIds);
 
-        // load results into a map of multi-FASTAs keyed by GeneFamily.primaryIdentifier as well as a map of sequence count
-        Map<String,String> multiFastaMap = new HashMap<>();
+        // load the sequence count and description of each family, keyed by GeneFamily.primaryIdentifier
         Map<String,Integer> countMap = new HashMap<>();
         Map<String,String> geneFamilyDescriptionMap = new HashMap<>();
-        String currentGeneFamilyIdentifier = "";
-        String currentGeneFamilyDescription = "";
-        String currentMultiFasta = "";
-        int count = 0;
         ExportResultsIterator resultsIterator;
         try {
             resultsIterator = executor.execute(query);
@@ -143,37 +90,16 @@ public class AnnotationController extends TilesAction {
         }
         while (resultsIterator.hasNext()) {
             List<ResultElement> valueRow = resultsIterator.next();
-            String primaryIdentifier = (String) valueRow.get(0).getField();
-            ClobAccess clob = (ClobAccess) valueRow.get(1).getField();
-            String geneFamilyIdentifier = (String) valueRow.get(2).getField();
-            String geneFamilyDescription = (String) valueRow.get(3).getField();
-            String residues = clob.toString();
-            String fastaHeader = ">"+primaryIdentifier+" type="+bagType+";gene_family="+geneFamilyIdentifier;
-            String fasta = fastaHeader+"\n"+residues+"\n";
-            if (geneFamilyIdentifier.equals(currentGeneFamilyIdentifier)) {
-                count++;
-                currentMultiFasta += fasta;
-            } else {
-                if (currentGeneFamilyIdentifier.length()>0) {
-                    countMap.put(currentGeneFamilyIdentifier, count);
-                    multiFastaMap.put(currentGeneFamilyIdentifier, currentMultiFasta);
-                    geneFamilyDescriptionMap.put(currentGeneFamilyIdentifier, currentGeneFamilyDescription);
-                }
-                count = 1;
-                currentGeneFamilyIdentifier = geneFamilyIdentifier;
-                currentGeneFamilyDescription = geneFamilyDescription;
-                currentMultiFasta = fasta;
-            }
+            String geneFamilyIdentifier = (String) valueRow.get(1).getField();
+            String geneFamilyDescription = (String) valueRow.get(2).getField();
+            Integer count = countMap.get(geneFamilyIdentifier);
+            countMap.put(geneFamilyIdentifier, (count==null) ? 1 : count+1);
+            geneFamilyDescriptionMap.put(geneFamilyIdentifier, geneFamilyDescription);
         }
-        // last one
-        countMap.put(currentGeneFamilyIdentifier, count);
-        multiFastaMap.put(currentGeneFamilyIdentifier, currentMultiFasta);
-        geneFamilyDescriptionMap.put(currentGeneFamilyIdentifier, currentGeneFamilyDescription);
 
         // set return attributes
-        request.setAttribute("sequenceType", sequenceType);
+        request.setAttribute("sequenceType", GeneFamilyFastaUtil.getSequenceType(bagType));
         request.setAttribute("countMap", countMap);
-        request.setAttribute("multiFastaMap", multiFastaMap);
         request.setAttribute("geneFamilyDescriptionMap", geneFamilyDescriptionMap);
 
         // have to have a return
@@ -15,7 +15,14 @@ import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -39,13 +46,18 @@ import org.intermine.api.results.ResultElement;
 import org.intermine.metadata.Model;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
-import org.intermine.pathquery.Constraints;
 import org.intermine.pathquery.OrderDirection;
 import org.intermine.pathquery.PathQuery;
+import org.intermine.web.logic.Constants;
 import org.intermine.web.logic.session.SessionMethods;
 
 import org.json.JSONObject;
 
+import org.ncgr.intermine.web.logic.BagIds;
+import org.ncgr.intermine.web.logic.GenotypeStore;
+import org.ncgr.intermine.web.logic.PackedGenotypeMatrix;
+import org.ncgr.intermine.web.logic.PopulationGenotypes;
+
 /**
  * Class that generates data for a chart of genotypes for various mapping populations for the given bag of markers.
  *
@@ -76,7 +88,8 @@ public class MarkerGenotypesController extends TilesAction {
         // our bag of markers
         InterMineBag bag = (InterMineBag) request.getAttribute("bag");
 
-        // TODO: see if these queries can be made more efficient
+        // resolved once, for the queries below and the population tasks
+        BagIds bagIds = BagIds.get(request, bag);
 
         // query linkage group and position for the markers
         // NOTE: this may not in general be legit since we may have multiple genetic maps!
@@ -88,7 +101,7 @@ public class MarkerGenotypesController extends TilesAction {
                          "GeneticMarker.linkageGroupPositions.position",
                          "GeneticMarker.linkageGroupPositions.linkageGroup.number"
                          );
-        lgQuery.addConstraint(Constraints.in("GeneticMarker", bag.getName()));
+        lgQuery.addConstraint(bagIds.in("GeneticMarker"));
         ExportResultsIterator lgResults = getResults(executor, lgQuery);
         while (lgResults.hasNext()) {
             List<ResultElement> row = lgResults.next();
@@ -106,7 +119,7 @@ public class MarkerGenotypesController extends TilesAction {
                          "GeneticMarker.mappingPopulations.primaryIdentifier",
                          "GeneticMarker.mappingPopulations.id"
                          );
-        mpQuery.addConstraint(Constraints.in("GeneticMarker", bag.getName()));
+        mpQuery.addConstraint(bagIds.in("GeneticMarker"));
         mpQuery.addOrderBy("GeneticMarker.mappingPopulations.primaryIdentifier", OrderDirection.ASC);
         ExportResultsIterator mpResults = getResults(executor, mpQuery);
         while (mpResults.hasNext()) {
@@ -116,75 +129,63 @@ public class MarkerGenotypesController extends TilesAction {
             mappingPopulations.put(mp, id);
         }
 
-        // query the markers that belong to each mapping population (subset of all the markers in the bag)
-        Map<String, Map<String,Integer>> mappingPopulationMarkers = new LinkedHashMap<String, Map<String,Integer>>();
+        // each population's markers, lines and calls are loaded concurrently on the shared pool, then merged in
+        // mappingPopulations order; a population that fails or takes longer than genotypes.timeoutSeconds is left out
+        Properties webProps = (Properties) session.getServletContext().getAttribute(Constants.WEB_PROPERTIES);
+        int threads = PopulationGenotypes.DEFAULT_THREADS;
+        long timeoutMillis = 1000L*PopulationGenotypes.DEFAULT_TIMEOUT_SECONDS;
+        if (webProps!=null) {
+            threads = Integer.parseInt(webProps.getProperty("genotypes.threads", String.valueOf(threads)));
+            timeoutMillis = 1000L*Integer.parseInt(webProps.getProperty("genotypes.timeoutSeconds", String.valueOf(PopulationGenotypes.DEFAULT_TIMEOUT_SECONDS)));
+        }
+        GenotypeStore store = (webProps==null) ? null : GenotypeStore.getInstance(webProps.getProperty("genotype.store.dir"));
+        ThreadPoolExecutor pool = PopulationGenotypes.getPool(threads);
+        Map<String,Future<PopulationGenotypes>> futures = new LinkedHashMap<String,Future<PopulationGenotypes>>();
+        List<String> failedPopulations = new ArrayList<String>();
         for (String mp : mappingPopulations.keySet()) {
-            PathQuery markerQuery = new PathQuery(model);
-            markerQuery.addViews(
-                                 "GeneticMarker.primaryIdentifier",
-                                 "GeneticMarker.id"
-                                 );
-            markerQuery.addConstraint(Constraints.in("GeneticMarker", bag.getName()));
-            markerQuery.addConstraint(Constraints.eq("GeneticMarker.mappingPopulations.primaryIdentifier", mp));
-            markerQuery.addOrderBy("GeneticMarker.primaryIdentifier", OrderDirection.ASC);
-            ExportResultsIterator markerResults = getResults(executor, markerQuery);
-            Map<String,Integer> markers = new LinkedHashMap<String,Integer>();
-            while (markerResults.hasNext()) {
-                List<ResultElement> row = markerResults.next();
-                String marker = (String) row.get(0).getField();
-                Integer id = (Integer) row.get(1).getField();
-                markers.put(marker, id);
+            try {
+                futures.put(mp, pool.submit(PopulationGenotypes.task(executor, model, store, bagIds, mp)));
+            } catch (RejectedExecutionException e) {
+                // the pool is saturated by other requests; leave this population out rather than block
+                LOG.error("Genotype pool busy, skipping mapping population "+mp+" for list "+bag.getName()+".");
+                failedPopulations.add(mp);
             }
-            mappingPopulationMarkers.put(mp, markers);
         }
-
-        // query the lines for each MappingPopulation and put in map of lists
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Map<String, Map<String,Integer>> mappingPopulationMarkers = new LinkedHashMap<String, Map<String,Integer>>();
         Map<String, Map<String,Integer>> mappingPopulationLines = new LinkedHashMap<String, Map<String,Integer>>();
-        for (String mp : mappingPopulations.keySet()) {
-            PathQuery lineQuery = new PathQuery(model);
-            lineQuery.addViews(
-                               "MappingPopulation.lines.primaryIdentifier",
-                               "MappingPopulation.lines.id"
-                               );
-            lineQuery.addConstraint(Constraints.eq("MappingPopulation.primaryIdentifier", mp));
-            lineQuery.addOrderBy("MappingPopulation.lines.primaryIdentifier", OrderDirection.ASC);
-            ExportResultsIterator lineResults = getResults(executor, lineQuery);
-            Map<String,Integer> lines = new LinkedHashMap<String,Integer>();
-            while (lineResults.hasNext()) {
-                List<ResultElement> row = lineResults.next();
-                String line = (String) row.get(0).getField();
-                Integer id = (Integer) row.get(1).getField();
-                lines.put(line, id);
+        Map<String,PackedGenotypeMatrix> mappingPopulationMatrices = new LinkedHashMap<String,PackedGenotypeMatrix>();
+        for (Map.Entry<String,Future<PopulationGenotypes>> entry : futures.entrySet()) {
+            String mp = entry.getKey();
+            Future<PopulationGenotypes> future = entry.getValue();
+            try {
+                PopulationGenotypes genotypes = future.get(Math.max(deadline-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                mappingPopulationMarkers.put(mp, genotypes.getMarkers());
+                mappingPopulationLines.put(mp, genotypes.getLines());
+                mappingPopulationMatrices.put(mp, genotypes.getMatrix());
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                LOG.error("Timed out loading genotypes of mapping population "+mp+" for list "+bag.getName()+".");
+                failedPopulations.add(mp);
+            } catch (ExecutionException e) {
+                LOG.error("Error loading genotypes of mapping population "+mp+" for list "+bag.getName()+": "+e.getCause());
+                failedPopulations.add(mp);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted loading genotypes.", e);
             }
-            mappingPopulationLines.put(mp, lines);
+        }
+        for (String mp : failedPopulations) {
+            mappingPopulations.remove(mp);
+        }
+        if (failedPopulations.size()>0) {
+            request.setAttribute("errorMessage", "Genotypes could not be loaded (failed, timed out or server busy) for mapping populations: "+StringUtils.join(failedPopulations, ", "));
         }
 
-        // query the values for each marker and line; be sure to order lines in same way as above.
+        // marker to char[] row views of the packed matrices, decoded as the JSP reads them
         Map<String, Map<String,char[]>> mappingPopulationValues = new LinkedHashMap<String, Map<String,char[]>>();
-        for (String mp : mappingPopulations.keySet()) {
-            Map<String,Integer> markers = mappingPopulationMarkers.get(mp);
-            Map<String,Integer> lines = mappingPopulationLines.get(mp);
-            Map<String,char[]> markersValues = new LinkedHashMap<String,char[]>();
-            for (String marker : markers.keySet()) {
-                char[] values = new char[lines.size()];
-                PathQuery valueQuery = new PathQuery(model);
-                valueQuery.addViews(
-                                    "GenotypeValue.value",
-                                    "GenotypeValue.line.primaryIdentifier" // for ordering
-                                    );
-                valueQuery.addConstraint(Constraints.eq("GenotypeValue.marker.primaryIdentifier", marker));
-                valueQuery.addConstraint(Constraints.eq("GenotypeValue.line.mappingPopulation.primaryIdentifier", mp));
-                valueQuery.addOrderBy("GenotypeValue.line.primaryIdentifier", OrderDirection.ASC);
-                ExportResultsIterator valueResults = getResults(executor, valueQuery);
-                int i = 0;
-                while (valueResults.hasNext()) {
-                    List<ResultElement> row = valueResults.next();
-                    Character val = new Character(((String) row.get(0).getField()).charAt(0));
-                    values[i++] = val;
-                }
-                markersValues.put(marker, values);
-            }
-            mappingPopulationValues.put(mp, markersValues);
+        for (Map.Entry<String,PackedGenotypeMatrix> entry : mappingPopulationMatrices.entrySet()) {
+            mappingPopulationValues.put(entry.getKey(), entry.getValue().asRowMap());
         }
         
         // output to caller
@@ -194,6 +195,7 @@ public class MarkerGenotypesController extends TilesAction {
         request.setAttribute("mappingPopulationLines", mappingPopulationLines);
         request.setAttribute("mappingPopulationMarkers", mappingPopulationMarkers);
         request.setAttribute("mappingPopulationValues", mappingPopulationValues);
+        request.setAttribute("mappingPopulationMatrices", mappingPopulationMatrices);
 
         // TIMING
         long end = System.currentTimeMillis();
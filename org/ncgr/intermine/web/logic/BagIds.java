@@ -0,0 +1,144 @@
+package org.ncgr.intermine.web.logic;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.PathConstraint;
+
+/**
+ * The object IDs of a bag, resolved once per request and held as a sorted int[], so that the several queries a
+ * controller makes, and the contents key of its cached results, all see the same bag contents.
+ *
+ * Use get() to share one instance across a request; it's immutable, so it can also be handed to background tasks that
+ * outlive the request, which then see the bag as it was when the request started.
+ *
+ * @author Sam Hokin
+ */
+public class BagIds {
+
+    static final String ATTRIBUTE_PREFIX = "bagIds.";
+
+    private final String name;
+    private final String type;
+    private final int[] ids;
+    private String contentsKey;
+
+    /**
+     * Resolve a bag to its object IDs.
+     *
+     * @param bag the bag
+     */
+    public BagIds(InterMineBag bag) {
+        this.name = bag.getName();
+        this.type = bag.getType();
+        List<Integer> contents = bag.getContentsAsIds();
+        int[] sorted = new int[contents.size()];
+        int k = 0;
+        for (Integer id : contents) {
+            sorted[k++] = id.intValue();
+        }
+        Arrays.sort(sorted);
+        this.ids = sorted;
+    }
+
+    /**
+     * Return the IDs of a bag for this request, resolving them on first use.
+     *
+     * @param request the HTTP request
+     * @param bag the bag
+     * @return the bag's IDs
+     */
+    public static BagIds get(HttpServletRequest request, InterMineBag bag) {
+        String attribute = ATTRIBUTE_PREFIX+bag.getName();
+        BagIds bagIds = (BagIds) request.getAttribute(attribute);
+        if (bagIds==null) {
+            bagIds = new BagIds(bag);
+            request.setAttribute(attribute, bagIds);
+        }
+        return bagIds;
+    }
+
+    /**
+     * Return a constraint of the given class path to the bag's objects as they were when the IDs were resolved.
+     *
+     * @param path the path of the constrained class, e.g. "Gene" or "GenotypeValue.marker"
+     * @return the constraint
+     */
+    public PathConstraint in(String path) {
+        return Constraints.inIds(path, asList());
+    }
+
+    /**
+     * @return a read-only view of the sorted IDs
+     */
+    public List<Integer> asList() {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int k) {
+                return ids[k];
+            }
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+
+    /**
+     * @param id an object ID
+     * @return true if the bag contains the object
+     */
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, id)>=0;
+    }
+
+    /**
+     * Return a key that identifies the contents of the bag, so that cached results are missed when the bag changes.
+     * The key is the SHA-1 hex digest of the bag's sorted object IDs.
+     *
+     * @return the key
+     */
+    public synchronized String getContentsKey() {
+        if (contentsKey==null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-1 is not available.", e);
+            }
+            byte[] bytes = new byte[4];
+            for (int value : ids) {
+                bytes[0] = (byte) (value >>> 24);
+                bytes[1] = (byte) (value >>> 16);
+                bytes[2] = (byte) (value >>> 8);
+                bytes[3] = (byte) value;
+                digest.update(bytes);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            contentsKey = key.toString();
+        }
+        return contentsKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+}
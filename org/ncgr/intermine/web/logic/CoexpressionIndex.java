@@ -0,0 +1,402 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the genes most co-expressed with a given gene across one expression source.
+ *
+ * The index is built once from the source's ExpressionStore matrix: each gene row is centered and scaled to unit
+ * length (after ranking, for Spearman), so the correlation of two genes is just the dot product of their rows.
+ * A search splits the genes into chunks that are scanned in parallel, each keeping a bounded min-heap of its K best,
+ * and the heaps are merged at the end. Genes with constant rows have no correlation and are skipped.
+ *
+ * Missing (NaN) stored values are left out of a row's ranks, mean and length, and are zero once the row is centered,
+ * so they add nothing to a correlation rather than counting as measured zeros.
+ *
+ * Indices are cached per source and method, a few at a time (coexpression.maxIndices in web.properties), and are
+ * rebuilt when the store's mapping of the source changes. Builds run in the background, one at a time, so a report
+ * page never waits on one; until it's done getInstance() returns null and callers show a pending state.
+ *
+ * @author Sam Hokin
+ */
+public class CoexpressionIndex {
+
+    protected static final Logger LOG = Logger.getLogger(CoexpressionIndex.class);
+
+    public static final int DEFAULT_MAX_INDICES = 4;
+    public static final int DEFAULT_TOP_K = 25;
+    static final int CHUNK_GENES = 4096;
+
+    private static int maxIndices = DEFAULT_MAX_INDICES;
+    // builds are cached rather than indices, so that a request waits only on the build of its own source
+    private static final Map<String,Build> INDICES = new LinkedHashMap<String,Build>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Build> eldest) {
+            return size()>maxIndices;
+        }
+    };
+    private static ExecutorService pool;
+    private static ExecutorService buildPool;
+
+    /**
+     * The correlation measure.
+     */
+    public enum Method {
+        PEARSON, SPEARMAN;
+
+        /**
+         * @param name pearson or spearman, case-insensitive
+         * @return the method, PEARSON if name is null or unknown
+         */
+        public static Method fromString(String name) {
+            if (name!=null && name.trim().equalsIgnoreCase("spearman")) return SPEARMAN;
+            return PEARSON;
+        }
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    final ExpressionStore.Source stored;
+    final Method method;
+    final int geneCount;
+    final int sampleCount;
+    // row-major centered unit rows: gene i is at data[i*sampleCount .. (i+1)*sampleCount)
+    final float[] data;
+    final boolean[] constant;
+
+    /**
+     * Build the index of a stored source.
+     *
+     * @param stored the mapped source matrix
+     * @param method the correlation measure
+     */
+    CoexpressionIndex(ExpressionStore.Source stored, Method method) {
+        this.stored = stored;
+        this.method = method;
+        this.geneCount = stored.getGeneCount();
+        this.sampleCount = stored.getSampleCount();
+        this.data = new float[geneCount*sampleCount];
+        this.constant = new boolean[geneCount];
+        // the row's present values, compacted, and their columns
+        double[] row = new double[sampleCount];
+        int[] columns = new int[sampleCount];
+        for (int i=0; i<geneCount; i++) {
+            int present = 0;
+            for (int j=0; j<sampleCount; j++) {
+                float value = stored.get(i, j);
+                if (Float.isNaN(value)) continue;
+                row[present] = value;
+                columns[present++] = j;
+            }
+            if (method==Method.SPEARMAN) rank(row, present);
+            double mean = 0.0;
+            for (int k=0; k<present; k++) mean += row[k];
+            mean /= Math.max(present, 1);
+            double sumSquares = 0.0;
+            for (int k=0; k<present; k++) {
+                row[k] -= mean;
+                sumSquares += row[k]*row[k];
+            }
+            if (sumSquares==0.0) {
+                constant[i] = true;
+                continue;
+            }
+            double norm = Math.sqrt(sumSquares);
+            int offset = i*sampleCount;
+            for (int k=0; k<present; k++) {
+                data[offset+columns[k]] = (float) (row[k]/norm);
+            }
+        }
+    }
+
+    /**
+     * The build of one source's index, started in the background by the first request that needs it.
+     */
+    static class Build extends FutureTask<CoexpressionIndex> {
+        final ExpressionStore.Source stored;
+
+        Build(final ExpressionStore.Source stored, final Method method, final String source) {
+            super(new Callable<CoexpressionIndex>() {
+                    @Override
+                    public CoexpressionIndex call() {
+                        long start = System.currentTimeMillis();
+                        CoexpressionIndex index = new CoexpressionIndex(stored, method);
+                        LOG.info("Built "+method.getName()+" co-expression index of "+source+" ("+index.geneCount+" genes x "+index.sampleCount+" samples) in "+
+                                 (System.currentTimeMillis()-start)+" ms.");
+                        return index;
+                    }
+                });
+            this.stored = stored;
+        }
+    }
+
+    /**
+     * Return the index of a source in the store if it's been built, starting the build in the background on first use.
+     *
+     * @param store the ExpressionStore
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param method the correlation measure
+     * @return the index, or null if the source isn't in the store or its index is still being built
+     */
+    public static CoexpressionIndex getInstance(ExpressionStore store, String source, Method method) {
+        ExpressionStore.Source stored = (store==null) ? null : store.getSource(source);
+        if (stored==null) return null;
+        String key = store.getDirectory().getAbsolutePath()+"/"+source+"/"+method.getName();
+        Build build;
+        synchronized (INDICES) {
+            build = INDICES.get(key);
+            // a rebuilt store file is a new mapping, so the old index is stale
+            if (build==null || build.stored!=stored) {
+                build = new Build(stored, method, source);
+                INDICES.put(key, build);
+                getBuildPool().execute(build);
+            }
+        }
+        if (!build.isDone()) return null;
+        try {
+            return build.get();
+        } catch (ExecutionException e) {
+            synchronized (INDICES) {
+                if (INDICES.get(key)==build) INDICES.remove(key);
+            }
+            throw new RuntimeException("Error building co-expression index of "+source+".", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for co-expression index of "+source+".", e);
+        }
+    }
+
+    /**
+     * Set the number of indices kept in memory, e.g. from coexpression.maxIndices.
+     *
+     * @param max the maximum number of cached indices
+     */
+    public static void setMaxIndices(int max) {
+        synchronized (INDICES) {
+            maxIndices = Math.max(max, 1);
+        }
+    }
+
+    /**
+     * Return the background build thread; builds run one at a time so they don't take every core from searches.
+     */
+    static synchronized ExecutorService getBuildPool() {
+        if (buildPool==null) {
+            buildPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "coexpression-build");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return buildPool;
+    }
+
+    /**
+     * Return the shared search threads, one per core.
+     */
+    static synchronized ExecutorService getPool() {
+        if (pool==null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "coexpression-"+threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return pool;
+    }
+
+    /**
+     * Replace the values of a row with their ranks, averaging the ranks of ties. The row is sorted as primitives and
+     * each value's tie range found by binary search, so no index objects are created.
+     */
+    static void rank(double[] row) {
+        rank(row, row.length);
+    }
+
+    /**
+     * Rank the first length values of a row in place.
+     */
+    static void rank(double[] row, int length) {
+        double[] sorted = Arrays.copyOf(row, length);
+        Arrays.sort(sorted);
+        for (int j=0; j<length; j++) {
+            int first = lowerBound(sorted, row[j]);
+            int end = upperBound(sorted, row[j]);
+            row[j] = (first+end+1)/2.0;
+        }
+    }
+
+    /**
+     * @return the index of the first element of sorted not less than value
+     */
+    static int lowerBound(double[] sorted, double value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo<hi) {
+            int mid = (lo+hi)>>>1;
+            if (Double.compare(sorted[mid], value)<0) lo = mid+1; else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first element of sorted greater than value
+     */
+    static int upperBound(double[] sorted, double value) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo<hi) {
+            int mid = (lo+hi)>>>1;
+            if (Double.compare(sorted[mid], value)<=0) lo = mid+1; else hi = mid;
+        }
+        return lo;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public int getGeneCount() {
+        return geneCount;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Find the K genes most positively correlated with the given gene.
+     *
+     * @param genePrimaryID the Gene.primaryIdentifier
+     * @param k the number of genes to return
+     * @return the neighbors, most correlated first; empty if the gene isn't in the source or its row is constant
+     */
+    public List<Neighbor> search(String genePrimaryID, int k) {
+        final int target = stored.getGeneIndex(genePrimaryID);
+        if (target<0 || constant[target] || k<1) return Collections.emptyList();
+        final float[] query = Arrays.copyOfRange(data, target*sampleCount, (target+1)*sampleCount);
+        final int topK = k;
+        List<Callable<PriorityQueue<Neighbor>>> tasks = new ArrayList<>();
+        for (int chunkStart=0; chunkStart<geneCount; chunkStart+=CHUNK_GENES) {
+            final int start = chunkStart;
+            final int end = Math.min(chunkStart+CHUNK_GENES, geneCount);
+            tasks.add(new Callable<PriorityQueue<Neighbor>>() {
+                    @Override
+                    public PriorityQueue<Neighbor> call() {
+                        return scan(query, target, start, end, topK);
+                    }
+                });
+        }
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(topK+1);
+        try {
+            for (Future<PriorityQueue<Neighbor>> future : getPool().invokeAll(tasks)) {
+                for (Neighbor neighbor : future.get()) {
+                    offer(heap, neighbor, topK);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted searching co-expressed genes of "+genePrimaryID+".", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error searching co-expressed genes of "+genePrimaryID+".", e.getCause());
+        }
+        List<Neighbor> neighbors = new ArrayList<>(heap);
+        Collections.sort(neighbors, Collections.reverseOrder());
+        for (Neighbor neighbor : neighbors) {
+            neighbor.primaryIdentifier = stored.getGenePrimaryID(neighbor.index);
+            neighbor.name = stored.getGeneName(neighbor.index);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Scan a range of genes, keeping the K best in a min-heap.
+     */
+    PriorityQueue<Neighbor> scan(float[] query, int target, int start, int end, int k) {
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(k+1);
+        float floor = Float.NEGATIVE_INFINITY;
+        for (int i=start; i<end; i++) {
+            if (i==target || constant[i]) continue;
+            int offset = i*sampleCount;
+            float dot = 0.0f;
+            for (int j=0; j<sampleCount; j++) {
+                dot += query[j]*data[offset+j];
+            }
+            if (heap.size()<k || dot>floor) {
+                offer(heap, new Neighbor(i, dot), k);
+                if (heap.size()==k) floor = heap.peek().correlation;
+            }
+        }
+        return heap;
+    }
+
+    static void offer(PriorityQueue<Neighbor> heap, Neighbor neighbor, int k) {
+        if (heap.size()<k) {
+            heap.add(neighbor);
+        } else if (neighbor.compareTo(heap.peek())>0) {
+            heap.poll();
+            heap.add(neighbor);
+        }
+    }
+
+    /**
+     * A co-expressed gene and its correlation with the query gene.
+     */
+    public static class Neighbor implements Comparable<Neighbor> {
+        final int index;
+        final float correlation;
+        String primaryIdentifier;
+        String name;
+
+        Neighbor(int index, float correlation) {
+            this.index = index;
+            this.correlation = correlation;
+        }
+
+        public String getPrimaryIdentifier() {
+            return primaryIdentifier;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getCorrelation() {
+            return correlation;
+        }
+
+        /**
+         * Order by correlation, then by lower row index first so that results are stable.
+         */
+        @Override
+        public int compareTo(Neighbor other) {
+            int c = Float.compare(correlation, other.correlation);
+            return (c!=0) ? c : Integer.compare(other.index, index);
+        }
+    }
+}
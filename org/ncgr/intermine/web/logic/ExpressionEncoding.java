@@ -0,0 +1,140 @@
+package org.ncgr.intermine.web.logic;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONWriter;
+
+/**
+ * Compact encodings of expression values, sent in place of a CanvasXpress "data" array of decimal text. The front end
+ * decodes the base64 string into an ArrayBuffer and wraps it in a typed array:
+ *
+ *   float32 - little-endian IEEE float32 values, row-major; new Float32Array(buffer)
+ *   uint16  - little-endian unsigned 16-bit values, row-major, quantized over the block's range;
+ *             value = offset + q*scale with q from new Uint16Array(buffer)
+ *
+ * The encoded block is {"encoding":..,"rows":..,"cols":..,"values":base64} plus "offset" and "scale" for uint16.
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionEncoding {
+
+    /**
+     * The encodings. JSON is the plain "data" array of numbers.
+     */
+    public enum Type {
+        JSON, FLOAT32, UINT16;
+
+        /**
+         * @param name "json", "float32" or "uint16", case-insensitive
+         * @return the type, JSON if name is null or unrecognized
+         */
+        public static Type fromString(String name) {
+            if (name!=null) {
+                for (Type type : values()) {
+                    if (type.name().equalsIgnoreCase(name.trim())) return type;
+                }
+            }
+            return JSON;
+        }
+
+        /**
+         * @return the lower case name used in web.properties, request parameters and the encoded block
+         */
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    static final int UINT16_MAX = 65535;
+
+    /**
+     * Encode a row-major block of values as a map, for adding to a JSONObject.
+     *
+     * @param values the values, row-major; only the first rows*cols are used
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param type FLOAT32 or UINT16
+     * @return the encoded block
+     */
+    public static Map<String,Object> encode(double[] values, int rows, int cols, Type type) {
+        Map<String,Object> block = new LinkedHashMap<>();
+        int count = rows*cols;
+        block.put("encoding", type.getName());
+        block.put("rows", rows);
+        block.put("cols", cols);
+        if (type==Type.UINT16) {
+            double[] range = getRange(values, count);
+            double scale = getScale(range);
+            block.put("offset", range[0]);
+            block.put("scale", scale);
+            block.put("values", toUint16(values, count, range[0], scale));
+        } else if (type==Type.FLOAT32) {
+            block.put("values", toFloat32(values, count));
+        } else {
+            throw new IllegalArgumentException("Not a compact encoding: "+type);
+        }
+        return block;
+    }
+
+    /**
+     * Write a row-major block of values as an encoded object.
+     *
+     * @param writer the JSONWriter, positioned where the object value belongs
+     * @param values the values, row-major; only the first rows*cols are used
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param type FLOAT32 or UINT16
+     */
+    public static void write(JSONWriter writer, double[] values, int rows, int cols, Type type) {
+        writer.object();
+        for (Map.Entry<String,Object> entry : encode(values, rows, cols, type).entrySet()) {
+            writer.key(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * @return base64 of the first count values as little-endian float32
+     */
+    static String toFloat32(double[] values, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(4*count).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<count; i++) {
+            buffer.putFloat((float) values[i]);
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * @return base64 of the first count values quantized to little-endian uint16 over [offset, offset+65535*scale]
+     */
+    static String toUint16(double[] values, int count, double offset, double scale) {
+        ByteBuffer buffer = ByteBuffer.allocate(2*count).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i=0; i<count; i++) {
+            long q = (scale==0.0) ? 0 : Math.round((values[i]-offset)/scale);
+            buffer.putShort((short) Math.max(0, Math.min(q, UINT16_MAX)));
+        }
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    /**
+     * @return {min, max} of the first count values, {0, 0} if there are none
+     */
+    static double[] getRange(double[] values, int count) {
+        if (count==0) return new double[] { 0.0, 0.0 };
+        double min = values[0];
+        double max = values[0];
+        for (int i=1; i<count; i++) {
+            if (values[i]<min) min = values[i];
+            if (values[i]>max) max = values[i];
+        }
+        return new double[] { min, max };
+    }
+
+    static double getScale(double[] range) {
+        return (range[1]-range[0])/UINT16_MAX;
+    }
+}
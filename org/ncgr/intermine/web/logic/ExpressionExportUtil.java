@@ -0,0 +1,141 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.intermine.api.profile.InterMineBag;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+import org.ncgr.intermine.web.logic.ExpressionSampleCache.SourceMetadata;
+
+/**
+ * Static methods that stream the expression values of a source, or a bag's slice of it, as tab-separated text straight
+ * from the values query. Only the current gene's row is held, so memory doesn't grow with the source.
+ *
+ * Two layouts:
+ *   wide - a header of "gene" and the sample names in chart order, then one line per gene; missing values are empty
+ *   long - a header of "gene", "sample", "value", then one line per value as it arrives
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionExportUtil {
+
+    /**
+     * Stream a source as TSV.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param sampleCache the sample metadata cache, for the wide header
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param bag the bag o'genes to restrict to, or null for every gene in the source
+     * @param wide true for the genes x samples layout, false for one value per line
+     * @param out the Writer
+     * @return the number of genes written, or -1 if the source has no samples
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if the Writer fails
+     */
+    public static int writeTSV(PathQueryExecutor executor, Model model, ExpressionSampleCache sampleCache, String source, InterMineBag bag,
+                               boolean wide, Writer out) throws ObjectStoreException, IOException {
+        SourceMetadata metadata = sampleCache.get(executor, model, source);
+        if (metadata==null) return -1;
+        List<String> sampleNames = metadata.getSampleNames();
+        if (wide) {
+            out.write("gene");
+            for (String sampleName : sampleNames) {
+                out.write('\t');
+                out.write(clean(sampleName));
+            }
+        } else {
+            out.write("gene\tsample\tvalue");
+        }
+        out.write('\n');
+        ExportResultsIterator valuesResult = executor.execute(getValuesQuery(model, source, bag));
+        Double[] row = wide ? new Double[sampleNames.size()] : null;
+        String currentGene = null;
+        int geneCount = 0;
+        while (valuesResult.hasNext()) {
+            List<ResultElement> valueRow = valuesResult.next();
+            String gene = (String) valueRow.get(0).getField();     // 0 ExpressionValue.feature.primaryIdentifier
+            String sampleName = (String) valueRow.get(1).getField(); // 1 ExpressionValue.sample.name
+            Double value = (Double) valueRow.get(2).getField();      // 2 ExpressionValue.value
+            if (!Objects.equals(gene, currentGene)) {
+                if (wide && currentGene!=null) writeRow(out, currentGene, row);
+                currentGene = gene;
+                geneCount++;
+                if (wide) Arrays.fill(row, null);
+            }
+            if (wide) {
+                int j = metadata.getSampleIndex(sampleName);
+                if (j>=0) row[j] = value;
+            } else {
+                out.write(clean(gene));
+                out.write('\t');
+                out.write(clean(sampleName));
+                out.write('\t');
+                out.write(String.valueOf(value));
+                out.write('\n');
+            }
+        }
+        // last one
+        if (wide && currentGene!=null) writeRow(out, currentGene, row);
+        out.flush();
+        return geneCount;
+    }
+
+    /**
+     * Write one gene's line of the wide layout.
+     */
+    static void writeRow(Writer out, String gene, Double[] row) throws IOException {
+        out.write(clean(gene));
+        for (Double value : row) {
+            out.write('\t');
+            if (value!=null) out.write(String.valueOf(value));
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Keep tabs and line breaks in names from breaking the TSV.
+     */
+    static String clean(String s) {
+        if (s==null) return "";
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Create a path query to retrieve the non-null expression values of a source, optionally restricted to a bag,
+     * ordered by gene so that each gene's values arrive together.
+     *
+     * @param model the model
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param bag the bag o'genes, or null for every gene
+     * @return the path query
+     */
+    public static PathQuery getValuesQuery(Model model, String source, InterMineBag bag) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "ExpressionValue.feature.primaryIdentifier", // 0
+                       "ExpressionValue.sample.name",               // 1
+                       "ExpressionValue.value"                      // 2
+                       );
+        query.addConstraint(Constraints.eq("ExpressionValue.sample.source.primaryIdentifier", source));
+        if (bag!=null) {
+            query.addConstraint(Constraints.in("ExpressionValue.feature", bag.getName()));
+        }
+        query.addConstraint(Constraints.isNotNull("ExpressionValue.value"));
+        query.addOrderBy("ExpressionValue.feature.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Export values query invalid: "+verifyList);
+        return query;
+    }
+}
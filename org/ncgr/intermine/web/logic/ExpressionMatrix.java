@@ -0,0 +1,443 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONWriter;
+
+/**
+ * A dense genes x samples expression matrix backed by a single row-major double array.
+ *
+ * Samples are fixed at construction; genes are added as their values arrive. Sample and gene names are mapped
+ * to dense indices once, so placing a value is a couple of hash lookups rather than a list scan, and no object is
+ * created per value. Missing values are left at 0.0, as CanvasXpress expects; the cells that have been set are
+ * tracked so that replicate group means can skip the missing ones. Values read from the float ExpressionStore are
+ * held as plain widened doubles and only formatted as floats where the JSON is written.
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionMatrix {
+
+    static final int INITIAL_GENE_CAPACITY = 16;
+
+    private final List<String> sampleNames;
+    private final Map<String,Integer> sampleIndex;
+    private final List<String> geneNames = new ArrayList<>();
+    private final Map<String,Integer> geneIndex = new HashMap<>();
+
+    // row-major: the value for gene i, sample j is at data[i*sampleCount+j]
+    private double[] data;
+    // the cells that have a value, at the same positions as data
+    private final BitSet present = new BitSet();
+    // true if the values are widened floats, which are written with Float.toString
+    private boolean floatValues = false;
+
+    /**
+     * Construct with the ordered sample names, which become the columns.
+     *
+     * @param sampleNames the sample names, in column order
+     */
+    public ExpressionMatrix(List<String> sampleNames) {
+        this.sampleNames = Collections.unmodifiableList(new ArrayList<>(sampleNames));
+        this.sampleIndex = new HashMap<>(sampleNames.size()*2);
+        for (int j=0; j<sampleNames.size(); j++) {
+            sampleIndex.put(sampleNames.get(j), j);
+        }
+        data = new double[INITIAL_GENE_CAPACITY*Math.max(sampleNames.size(), 1)];
+    }
+
+    /**
+     * Add a gene (row) if it isn't already present.
+     *
+     * @param geneName the gene name
+     * @return the row index of the gene
+     */
+    public int addGene(String geneName) {
+        Integer i = geneIndex.get(geneName);
+        if (i!=null) return i;
+        int row = geneNames.size();
+        int required = (row+1)*sampleNames.size();
+        if (required>data.length) {
+            data = Arrays.copyOf(data, Math.max(required, data.length*2));
+        }
+        geneNames.add(geneName);
+        geneIndex.put(geneName, row);
+        return row;
+    }
+
+    /**
+     * Set the value for the given gene and sample, adding the gene if it's new.
+     *
+     * @param geneName the gene name
+     * @param sampleName the sample name
+     * @param value the expression value
+     * @return false if the sample is not one of this matrix's samples, in which case the value is dropped
+     */
+    public boolean setValue(String geneName, String sampleName, double value) {
+        Integer j = sampleIndex.get(sampleName);
+        if (j==null) return false;
+        int i = addGene(geneName);
+        set(i, j, value);
+        return true;
+    }
+
+    /**
+     * Set a value by index.
+     *
+     * @param i the gene (row) index, from addGene()
+     * @param j the sample (column) index
+     * @param value the expression value
+     */
+    public void set(int i, int j, double value) {
+        int position = i*sampleNames.size()+j;
+        data[position] = value;
+        present.set(position);
+    }
+
+    /**
+     * @param i the gene (row) index
+     * @param j the sample (column) index
+     * @return the value
+     */
+    public double getValue(int i, int j) {
+        return data[i*sampleNames.size()+j];
+    }
+
+    /**
+     * @param i the gene (row) index
+     * @param j the sample (column) index
+     * @return true if the value has been set, false if it's missing
+     */
+    public boolean isPresent(int i, int j) {
+        return present.get(i*sampleNames.size()+j);
+    }
+
+    /**
+     * @param sampleName the sample name
+     * @return the column index of the sample, or -1 if it isn't present
+     */
+    public int getSampleIndex(String sampleName) {
+        Integer j = sampleIndex.get(sampleName);
+        return (j==null) ? -1 : j;
+    }
+
+    /**
+     * @param geneName the gene name
+     * @return the row index of the gene, or -1 if it isn't present
+     */
+    public int getGeneIndex(String geneName) {
+        Integer i = geneIndex.get(geneName);
+        return (i==null) ? -1 : i;
+    }
+
+    public int getGeneCount() {
+        return geneNames.size();
+    }
+
+    public int getSampleCount() {
+        return sampleNames.size();
+    }
+
+    public List<String> getGeneNames() {
+        return Collections.unmodifiableList(geneNames);
+    }
+
+    public List<String> getSampleNames() {
+        return sampleNames;
+    }
+
+    /**
+     * @param floatValues true if the values are widened floats, e.g. from the ExpressionStore, so that they print in
+     *                    JSON as they were loaded rather than with float round-off digits
+     */
+    public void setFloatValues(boolean floatValues) {
+        this.floatValues = floatValues;
+    }
+
+    public boolean isFloatValues() {
+        return floatValues;
+    }
+
+    /**
+     * Return a new matrix with the genes and samples in the given order, e.g. the leaf order of a clustering.
+     *
+     * @param geneOrder the row indices of this matrix, in their new order
+     * @param sampleOrder the column indices of this matrix, in their new order
+     * @param geneNames the names for the reordered genes
+     * @param sampleNames the names for the reordered samples
+     * @return the reordered matrix
+     */
+    public ExpressionMatrix reorder(int[] geneOrder, int[] sampleOrder, List<String> geneNames, List<String> sampleNames) {
+        ExpressionMatrix reordered = new ExpressionMatrix(sampleNames);
+        reordered.floatValues = floatValues;
+        int n = this.sampleNames.size();
+        for (int i=0; i<geneOrder.length; i++) {
+            int row = reordered.addGene(geneNames.get(i));
+            for (int j=0; j<sampleOrder.length; j++) {
+                int position = geneOrder[i]*n+sampleOrder[j];
+                reordered.data[row*sampleOrder.length+j] = data[position];
+                if (present.get(position)) reordered.present.set(row*sampleOrder.length+j);
+            }
+        }
+        return reordered;
+    }
+
+    /**
+     * @return the row-major backing array, which may be longer than genes x samples
+     */
+    double[] getData() {
+        return data;
+    }
+
+    /**
+     * Write the CanvasXpress y.data block, an array of gene rows, straight from the backing array.
+     *
+     * @param writer the JSONWriter, positioned where the array value belongs
+     */
+    public void writeData(JSONWriter writer) {
+        int n = sampleNames.size();
+        writer.array();
+        for (int i=0; i<geneNames.size(); i++) {
+            writer.array();
+            for (int j=0; j<n; j++) {
+                writeValue(writer, data[i*n+j]);
+            }
+            writer.endArray();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Write the CanvasXpress heat map "y" object: smps, vars and data.
+     *
+     * @param writer the JSONWriter, positioned where the object value belongs
+     */
+    public void writeY(JSONWriter writer) {
+        writer.object();
+        writer.key("smps");
+        writer.array();
+        for (String sampleName : sampleNames) writer.value(sampleName);
+        writer.endArray();
+        writer.key("vars");
+        writer.array();
+        for (String geneName : geneNames) writer.value(geneName);
+        writer.endArray();
+        writer.key("data");
+        writeData(writer);
+        writer.endObject();
+    }
+
+    /**
+     * Write the CanvasXpress "y" object for a window of the matrix: genes [geneStart, geneStart+geneCount) and
+     * samples [sampleStart, sampleStart+sampleCount), clipped to the matrix.
+     *
+     * @param writer the JSONWriter, positioned where the object value belongs
+     * @param geneStart the first gene (row) index
+     * @param geneCount the number of genes
+     * @param sampleStart the first sample (column) index
+     * @param sampleCount the number of samples
+     */
+    public void writeTile(JSONWriter writer, int geneStart, int geneCount, int sampleStart, int sampleCount) {
+        int n = sampleNames.size();
+        int i0 = clip(geneStart, geneNames.size());
+        int i1 = end(i0, geneCount, geneNames.size());
+        int j0 = clip(sampleStart, n);
+        int j1 = end(j0, sampleCount, n);
+        writer.object();
+        writer.key("smps");
+        writer.array();
+        for (int j=j0; j<j1; j++) writer.value(sampleNames.get(j));
+        writer.endArray();
+        writer.key("vars");
+        writer.array();
+        for (int i=i0; i<i1; i++) writer.value(geneNames.get(i));
+        writer.endArray();
+        writer.key("data");
+        writer.array();
+        for (int i=i0; i<i1; i++) {
+            writer.array();
+            for (int j=j0; j<j1; j++) {
+                writeValue(writer, data[i*n+j]);
+            }
+            writer.endArray();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Write a downsampled overview of the whole matrix, at most maxGenes x maxSamples blocks, each holding the mean and
+     * the max of the present values it covers, or null if it covers none. The output is
+     * <pre>
+     * {"geneBlock":..,"sampleBlock":..,"vars":[first gene of each block],"smps":[first sample of each block],
+     *  "mean":[[...],...],"max":[[...],...]}
+     * </pre>
+     *
+     * @param writer the JSONWriter, positioned where the object value belongs
+     * @param maxGenes the maximum number of block rows
+     * @param maxSamples the maximum number of block columns
+     */
+    public void writeOverview(JSONWriter writer, int maxGenes, int maxSamples) {
+        int m = geneNames.size();
+        int n = sampleNames.size();
+        int geneBlock = Math.max(1, (m+maxGenes-1)/Math.max(maxGenes, 1));
+        int sampleBlock = Math.max(1, (n+maxSamples-1)/Math.max(maxSamples, 1));
+        int rows = (m+geneBlock-1)/geneBlock;
+        int cols = (n+sampleBlock-1)/sampleBlock;
+        double[] sum = new double[rows*cols];
+        double[] max = new double[rows*cols];
+        int[] count = new int[rows*cols];
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        // a single pass over the backing array
+        for (int i=0; i<m; i++) {
+            int r = i/geneBlock;
+            for (int j=0; j<n; j++) {
+                if (!present.get(i*n+j)) continue;
+                int b = r*cols+j/sampleBlock;
+                double value = data[i*n+j];
+                sum[b] += value;
+                if (value>max[b]) max[b] = value;
+                count[b]++;
+            }
+        }
+        writer.object();
+        writer.key("geneBlock").value(geneBlock);
+        writer.key("sampleBlock").value(sampleBlock);
+        writer.key("vars");
+        writer.array();
+        for (int i=0; i<m; i+=geneBlock) writer.value(geneNames.get(i));
+        writer.endArray();
+        writer.key("smps");
+        writer.array();
+        for (int j=0; j<n; j+=sampleBlock) writer.value(sampleNames.get(j));
+        writer.endArray();
+        writer.key("mean");
+        writer.array();
+        for (int r=0; r<rows; r++) {
+            writer.array();
+            for (int c=0; c<cols; c++) {
+                int b = r*cols+c;
+                if (count[b]==0) {
+                    writer.value((Object) null);
+                } else {
+                    writer.value(sum[b]/count[b]);
+                }
+            }
+            writer.endArray();
+        }
+        writer.endArray();
+        writer.key("max");
+        writer.array();
+        for (int r=0; r<rows; r++) {
+            writer.array();
+            for (int c=0; c<cols; c++) {
+                int b = r*cols+c;
+                if (count[b]==0) {
+                    writer.value((Object) null);
+                } else {
+                    writer.value(max[b]);
+                }
+            }
+            writer.endArray();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Write a single value, as a float if the values are widened floats.
+     */
+    void writeValue(JSONWriter writer, double value) {
+        if (floatValues) {
+            writer.value((Object) Float.valueOf((float) value));
+        } else {
+            writer.value(value);
+        }
+    }
+
+    static int clip(int index, int size) {
+        return Math.max(0, Math.min(index, size));
+    }
+
+    /**
+     * Return the end of a window of count indices from a clipped start, clipping the count rather than the sum so that
+     * a count of Integer.MAX_VALUE (all the rest) doesn't overflow.
+     */
+    static int end(int start, int count, int size) {
+        return start+clip(count, size-start);
+    }
+
+    /**
+     * @return the approximate size of this matrix in bytes, for HeatMapCache
+     */
+    public long getBytes() {
+        long chars = 0;
+        for (String geneName : geneNames) chars += (geneName==null) ? 0 : geneName.length();
+        for (String sampleName : sampleNames) chars += sampleName.length();
+        // values and their presence bits plus two bytes per char plus rough per-name overhead
+        return 8L*data.length + present.size()/8 + 2*chars + 64L*(geneNames.size()+sampleNames.size());
+    }
+
+    /**
+     * Write the CanvasXpress heat map "y" object with the values in a compact encoding: smps, vars, and an
+     * "encodedData" block in place of "data". The JSON encoding writes the plain "y" object.
+     *
+     * @param writer the JSONWriter, positioned where the object value belongs
+     * @param encoding the encoding
+     */
+    public void writeY(JSONWriter writer, ExpressionEncoding.Type encoding) {
+        if (encoding==ExpressionEncoding.Type.JSON) {
+            writeY(writer);
+            return;
+        }
+        writer.object();
+        writer.key("smps");
+        writer.array();
+        for (String sampleName : sampleNames) writer.value(sampleName);
+        writer.endArray();
+        writer.key("vars");
+        writer.array();
+        for (String geneName : geneNames) writer.value(geneName);
+        writer.endArray();
+        writer.key("encodedData");
+        ExpressionEncoding.write(writer, data, geneNames.size(), sampleNames.size(), encoding);
+        writer.endObject();
+    }
+
+    /**
+     * Return the CanvasXpress heat map JSON with the values in the given encoding.
+     *
+     * @param encoding the encoding
+     * @return the JSON string
+     */
+    public String toHeatmapJSON(ExpressionEncoding.Type encoding) {
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("y");
+        writeY(writer, encoding);
+        writer.endObject();
+        return out.toString();
+    }
+
+    /**
+     * Return the CanvasXpress heat map JSON, {"y":{"smps":[...],"vars":[...],"data":[[...],...]}}.
+     *
+     * @return the JSON string
+     */
+    public String toHeatmapJSON() {
+        StringWriter out = new StringWriter();
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("y");
+        writeY(writer);
+        writer.endObject();
+        return out.toString();
+    }
+}
@@ -0,0 +1,356 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+import org.json.JSONObject;
+
+/**
+ * A process-wide cache of the sample metadata of each ExpressionSource, with its JSON pre-serialized, so that the
+ * expression bar charts and heat maps only query the per-gene values on each request. Sample metadata doesn't change
+ * within a mine release, so sources are loaded on first use and the whole cache is dropped when the release version
+ * (project.releaseVersion in web.properties) changes.
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionSampleCache {
+
+    protected static final Logger LOG = Logger.getLogger(ExpressionSampleCache.class);
+
+    private static final ExpressionSampleCache INSTANCE = new ExpressionSampleCache();
+
+    private final Map<String,SourceMetadata> sources = new ConcurrentHashMap<>();
+    private String releaseVersion = null;
+
+    /**
+     * Return the shared cache for the release named by project.releaseVersion in web.properties.
+     *
+     * @param webProps the web properties, which may be null
+     * @return the cache
+     */
+    public static ExpressionSampleCache getInstance(Properties webProps) {
+        return getInstance((webProps==null) ? null : webProps.getProperty("project.releaseVersion"));
+    }
+
+    /**
+     * Return the shared cache for the given release, clearing it if the release has changed.
+     *
+     * @param releaseVersion the mine release version, e.g. project.releaseVersion
+     * @return the cache
+     */
+    public static ExpressionSampleCache getInstance(String releaseVersion) {
+        synchronized (INSTANCE) {
+            if (!Objects.equals(INSTANCE.releaseVersion, releaseVersion)) {
+                if (INSTANCE.sources.size()>0) {
+                    LOG.info("Release changed from "+INSTANCE.releaseVersion+" to "+releaseVersion+", clearing "+INSTANCE.sources.size()+" sources.");
+                }
+                INSTANCE.sources.clear();
+                INSTANCE.releaseVersion = releaseVersion;
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get the metadata of a single source, loading it on first use.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the metadata, or null if the source has no samples
+     * @throws ObjectStoreException if the query fails
+     */
+    public SourceMetadata get(PathQueryExecutor executor, Model model, String source) throws ObjectStoreException {
+        return getAll(executor, model, Collections.singletonList(source)).get(source);
+    }
+
+    /**
+     * Get the metadata of the given sources, loading the missing ones with a single query.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param sourceIdentifiers the ExpressionSource.primaryIdentifiers
+     * @return the metadata keyed by source, in the given order; sources without samples are absent
+     * @throws ObjectStoreException if the query fails
+     */
+    public Map<String,SourceMetadata> getAll(PathQueryExecutor executor, Model model, Collection<String> sourceIdentifiers) throws ObjectStoreException {
+        List<String> missing = new ArrayList<>();
+        for (String source : sourceIdentifiers) {
+            if (!sources.containsKey(source)) missing.add(source);
+        }
+        if (missing.size()>0) {
+            load(executor, model, missing);
+        }
+        Map<String,SourceMetadata> metadata = new LinkedHashMap<>();
+        for (String source : sourceIdentifiers) {
+            SourceMetadata sourceMetadata = sources.get(source);
+            if (sourceMetadata!=null) metadata.put(source, sourceMetadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Drop all cached sources.
+     */
+    public void clear() {
+        sources.clear();
+    }
+
+    /**
+     * @return the number of cached sources
+     */
+    public int size() {
+        return sources.size();
+    }
+
+    /**
+     * Query the samples of the given sources and add them to the cache.
+     */
+    void load(PathQueryExecutor executor, Model model, List<String> sourceIdentifiers) throws ObjectStoreException {
+        Map<String,SourceMetadata> loaded = new LinkedHashMap<>();
+        ExportResultsIterator samplesResult = executor.execute(getSamplesQuery(model, sourceIdentifiers));
+        while (samplesResult.hasNext()) {
+            List<ResultElement> row = samplesResult.next();
+            if (row==null || row.get(1)==null || row.get(1).getField()==null) {
+                throw new RuntimeException("Null row or row element retrieving samples.");
+            }
+            String source = (String) row.get(1).getField(); // 1 ExpressionSample.source.primaryIdentifier
+            SourceMetadata sourceMetadata = loaded.get(source);
+            if (sourceMetadata==null) {
+                sourceMetadata = new SourceMetadata((Integer) row.get(0).getField(), // 0 ExpressionSample.source.id
+                                                    source,
+                                                    (String) row.get(2).getField(),  // 2 ExpressionSample.source.synopsis
+                                                    (String) row.get(3).getField()); // 3 ExpressionSample.source.unit
+                loaded.put(source, sourceMetadata);
+            }
+            sourceMetadata.addSample((String) row.get(4).getField(),  // 4 ExpressionSample.name
+                                     (String) row.get(5).getField(),  // 5 ExpressionSample.description
+                                     (String) row.get(6).getField(),  // 6 ExpressionSample.tissue
+                                     (String) row.get(7).getField(),  // 7 ExpressionSample.treatment
+                                     (String) row.get(8).getField(),  // 8 ExpressionSample.genotype
+                                     (String) row.get(9).getField()); // 9 ExpressionSample.replicateGroup
+        }
+        for (SourceMetadata sourceMetadata : loaded.values()) {
+            sourceMetadata.serialize();
+            sources.put(sourceMetadata.identifier, sourceMetadata);
+        }
+    }
+
+    /**
+     * Create a path query to retrieve the samples of the given sources along with the source attributes, ordered by
+     * source and then in chart order.
+     *
+     * @param model the model
+     * @param sourceIdentifiers the ExpressionSource.primaryIdentifiers
+     * @return the path query
+     */
+    static PathQuery getSamplesQuery(Model model, Collection<String> sourceIdentifiers) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "ExpressionSample.source.id",                // 0
+                       "ExpressionSample.source.primaryIdentifier", // 1
+                       "ExpressionSample.source.synopsis",          // 2
+                       "ExpressionSample.source.unit",              // 3
+                       "ExpressionSample.name",                     // 4
+                       "ExpressionSample.description",              // 5
+                       "ExpressionSample.tissue",                   // 6
+                       "ExpressionSample.treatment",                // 7
+                       "ExpressionSample.genotype",                 // 8
+                       "ExpressionSample.replicateGroup"            // 9
+                       );
+        query.addConstraint(Constraints.oneOfValues("ExpressionSample.source.primaryIdentifier", sourceIdentifiers));
+        query.addOrderBy("ExpressionSample.source.primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy("ExpressionSample.replicateGroup", OrderDirection.ASC);
+        query.addOrderBy("ExpressionSample.name", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Samples query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * The samples of one source in chart order, with their attributes as pre-serialized JSON. Immutable once cached.
+     */
+    public static class SourceMetadata {
+        final Integer id;
+        final String identifier;
+        final String synopsis;
+        final String unit;
+        final List<String> sampleNames = new ArrayList<>();
+        final Map<String,Integer> sampleIndex = new HashMap<>();
+        final List<String> sampleRepgroups = new ArrayList<>();
+        // the replicate group of each sample by index, null where it has none
+        final List<String> sampleGroupNames = new ArrayList<>();
+        final Map<String,String> sampleDescriptions = new LinkedHashMap<>();
+        final Map<String,String> sampleTissues = new LinkedHashMap<>();
+        final Map<String,String> sampleTreatments = new LinkedHashMap<>();
+        final Map<String,String> sampleGenotypes = new LinkedHashMap<>();
+        String sourceJSON;
+        String samplesJSON;
+        String repgroupsJSON;
+        String descriptionsJSON;
+        String tissuesJSON;
+        String treatmentsJSON;
+        String genotypesJSON;
+        ReplicateGroups replicateGroups;
+        String groupsJSON;
+
+        SourceMetadata(Integer id, String identifier, String synopsis, String unit) {
+            this.id = id;
+            this.identifier = identifier;
+            this.synopsis = synopsis;
+            this.unit = unit;
+        }
+
+        void addSample(String name, String description, String tissue, String treatment, String genotype, String repgroup) {
+            if (sampleIndex.containsKey(name)) return;
+            sampleIndex.put(name, sampleNames.size());
+            sampleNames.add(name);
+            sampleGroupNames.add(repgroup);
+            if (repgroup!=null) {
+                sampleRepgroups.add(repgroup);
+            }
+            sampleDescriptions.put(name, description);
+            sampleTissues.put(name, tissue);
+            sampleTreatments.put(name, treatment);
+            sampleGenotypes.put(name, genotype);
+        }
+
+        void serialize() {
+            Map<String,Object> jsonMap = new LinkedHashMap<>();
+            jsonMap.put("id", id);
+            jsonMap.put("identifier", identifier);
+            jsonMap.put("synopsis", synopsis);
+            sourceJSON = new JSONObject(jsonMap).toString();
+            samplesJSON = toJSONArray(sampleNames);
+            repgroupsJSON = toJSONArray(sampleRepgroups);
+            descriptionsJSON = new JSONObject(sampleDescriptions).toString();
+            tissuesJSON = new JSONObject(sampleTissues).toString();
+            treatmentsJSON = new JSONObject(sampleTreatments).toString();
+            genotypesJSON = new JSONObject(sampleGenotypes).toString();
+            replicateGroups = new ReplicateGroups(sampleNames, sampleGroupNames);
+            groupsJSON = toJSONArray(replicateGroups.getGroupNames());
+        }
+
+        static String toJSONArray(List<String> values) {
+            StringBuilder builder = new StringBuilder("[");
+            for (int i=0; i<values.size(); i++) {
+                if (i>0) builder.append(',');
+                builder.append(JSONObject.quote(values.get(i)));
+            }
+            return builder.append(']').toString();
+        }
+
+        public Integer getId() {
+            return id;
+        }
+
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getSynopsis() {
+            return synopsis;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        /**
+         * @return the sample names, in chart order
+         */
+        public List<String> getSampleNames() {
+            return Collections.unmodifiableList(sampleNames);
+        }
+
+        /**
+         * @param sampleName the sample name
+         * @return the sample's index, or -1 if it isn't one of this source's samples
+         */
+        public int getSampleIndex(String sampleName) {
+            Integer j = sampleIndex.get(sampleName);
+            return (j==null) ? -1 : j;
+        }
+
+        /**
+         * @return the non-null replicate groups of the samples, in chart order
+         */
+        public List<String> getSampleRepgroups() {
+            return Collections.unmodifiableList(sampleRepgroups);
+        }
+
+        /**
+         * @return the samples' replicate groups, for aggregating values by group
+         */
+        public ReplicateGroups getReplicateGroups() {
+            return replicateGroups;
+        }
+
+        public Map<String,String> getSampleDescriptions() {
+            return Collections.unmodifiableMap(sampleDescriptions);
+        }
+
+        /**
+         * @return {"id":..,"identifier":..,"synopsis":..}
+         */
+        public String getSourceJSON() {
+            return sourceJSON;
+        }
+
+        /**
+         * @return the sample names as a JSON array
+         */
+        public String getSamplesJSON() {
+            return samplesJSON;
+        }
+
+        /**
+         * @return the non-null replicate groups as a JSON array
+         */
+        public String getRepgroupsJSON() {
+            return repgroupsJSON;
+        }
+
+        /**
+         * @return the replicate group names as a JSON array
+         */
+        public String getGroupsJSON() {
+            return groupsJSON;
+        }
+
+        public String getDescriptionsJSON() {
+            return descriptionsJSON;
+        }
+
+        public String getTissuesJSON() {
+            return tissuesJSON;
+        }
+
+        public String getTreatmentsJSON() {
+            return treatmentsJSON;
+        }
+
+        public String getGenotypesJSON() {
+            return genotypesJSON;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only access to the memory-mapped expression matrices written by ExpressionStoreBuilder, one per ExpressionSource.
+ *
+ * Each source has three files in the store directory, named from the source primaryIdentifier by getFileStem():
+ *   stem.expr    - a 24-byte header (magic, version, gene count, sample count, build id) followed by little-endian float32
+ *                  values, gene-major, so each gene's row is contiguous; NaN where a gene has no value in a sample
+ *   stem.genes   - a build line, then gene primaryIdentifier TAB gene name, one line per row
+ *   stem.samples - a build line, then sample name, one line per column
+ *
+ * and optionally
+ *   stem.sorted  - the same header (with its own magic and version), each sample's count of present values as int32,
+ *                  then each sample's values sorted ascending with its NaNs last, sample-major, for percentile ranks
+ *
+ * The builder moves the files into place one at a time, so each carries the build's random id (the build line is
+ * "#build" TAB the id in hex) and a source whose files come from different builds isn't mapped.
+ *
+ * Rows are served as zero-copy FloatBuffer slices of the mapped file.
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionStore {
+
+    protected static final Logger LOG = Logger.getLogger(ExpressionStore.class);
+
+    static final int MAGIC = 0x45585052; // "EXPR"
+    static final int SORTED_MAGIC = 0x534F5254; // "SORT"
+    // 2: missing values are NaN rather than 0.0; 3: the header and sidecars carry a build id
+    static final int VERSION = 3;
+    // 2: each sample's present count precedes the sorted columns, and only present values are ranked; 3: build id
+    static final int SORTED_VERSION = 3;
+    static final int HEADER_BYTES = 24;
+    static final String BUILD_PREFIX = "#build\t";
+
+    static final String MATRIX_SUFFIX = ".expr";
+    static final String GENES_SUFFIX = ".genes";
+    static final String SAMPLES_SUFFIX = ".samples";
+    static final String SORTED_SUFFIX = ".sorted";
+
+    private static final Map<String,ExpressionStore> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final Map<String,Source> sources = new ConcurrentHashMap<>();
+
+    ExpressionStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Return the store in the given directory, e.g. the expression.store.dir web property.
+     *
+     * @param dir the store directory path, which may be null
+     * @return the store, or null if dir is null or isn't a directory
+     */
+    public static ExpressionStore getInstance(String dir) {
+        if (dir==null || dir.trim().length()==0) return null;
+        File file = new File(dir.trim());
+        if (!file.isDirectory()) return null;
+        return INSTANCES.computeIfAbsent(file.getAbsolutePath(), path -> new ExpressionStore(new File(path)));
+    }
+
+    /**
+     * @return the directory holding the store files
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return true if the store has a matrix for the source
+     */
+    public boolean hasSource(String source) {
+        return sources.containsKey(source) || new File(dir, getFileStem(source)+MATRIX_SUFFIX).exists();
+    }
+
+    /**
+     * Get the mapped matrix for a source, mapping it on first use.
+     *
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the source's matrix, or null if it isn't in the store
+     */
+    public Source getSource(String source) {
+        Source mapped = sources.get(source);
+        if (mapped!=null || !hasSource(source)) return mapped;
+        synchronized (this) {
+            mapped = sources.get(source);
+            if (mapped==null) {
+                try {
+                    mapped = new Source(dir, getFileStem(source));
+                    sources.put(source, mapped);
+                } catch (IOException e) {
+                    LOG.error("Error mapping expression store for source "+source+": "+e.toString());
+                    return null;
+                }
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Return the build id of a source's mapped matrix, which changes whenever the source is rebuilt and released, e.g.
+     * to keep payloads built from an older build out of a cache.
+     *
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the build id in hex, or null if the source isn't in the store
+     */
+    public String getBuildKey(String source) {
+        Source mapped = getSource(source);
+        return (mapped==null) ? null : Long.toHexString(mapped.buildId);
+    }
+
+    /**
+     * Forget a mapped source, e.g. after it's been rebuilt; the next getSource() maps the new files.
+     *
+     * @param source the ExpressionSource.primaryIdentifier
+     */
+    public void release(String source) {
+        sources.remove(source);
+    }
+
+    /**
+     * Form a file name stem from a source primaryIdentifier, replacing characters that aren't safe in file names.
+     *
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the file name stem
+     */
+    public static String getFileStem(String source) {
+        return source.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * @return a new random build id
+     */
+    static long newBuildId() {
+        return new SecureRandom().nextLong();
+    }
+
+    /**
+     * Write the build line that starts every sidecar file.
+     */
+    static void writeBuildLine(Writer writer, long buildId) throws IOException {
+        writer.write(BUILD_PREFIX);
+        writer.write(Long.toHexString(buildId));
+        writer.write('\n');
+    }
+
+    /**
+     * Read the lines of a sidecar file after its build line, which must carry the given build id.
+     *
+     * @throws IOException if the file can't be read or is from another build
+     */
+    static List<String> readSidecar(File file, long buildId) throws IOException {
+        List<String> lines = readLines(file);
+        if (lines.isEmpty() || !lines.get(0).equals(BUILD_PREFIX+Long.toHexString(buildId))) {
+            throw new IOException(file.getName()+" is from a different build than its matrix.");
+        }
+        return lines.subList(1, lines.size());
+    }
+
+    /**
+     * Read the lines of a sidecar file.
+     */
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine())!=null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The mapped genes x samples matrix of a single source.
+     */
+    public static class Source {
+        final List<String> genePrimaryIDs;
+        final List<String> geneNames;
+        final Map<String,Integer> geneIndex;
+        final List<String> sampleNames;
+        final Map<String,Integer> sampleIndex;
+        final FloatBuffer values;
+        // the random id shared by this build's matrix and sidecars
+        final long buildId;
+        // each sample's values sorted ascending, sample-major, or null if not built
+        final FloatBuffer sorted;
+        // the number of present (non-NaN) values at the start of each sample's sorted column
+        final int[] presentCounts;
+
+        Source(File dir, String stem) throws IOException {
+            long buildId;
+            int genes;
+            int samples;
+            try (RandomAccessFile file = new RandomAccessFile(new File(dir, stem+MATRIX_SUFFIX), "r");
+                 FileChannel channel = file.getChannel()) {
+                // the mapping stays valid after the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION) {
+                    throw new IOException("Not an expression store file: "+stem+MATRIX_SUFFIX);
+                }
+                genes = buffer.getInt(8);
+                samples = buffer.getInt(12);
+                buildId = buffer.getLong(16);
+                buffer.position(HEADER_BYTES);
+                values = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            this.buildId = buildId;
+            // the sidecars must come from the same build as the matrix
+            List<String> geneLines = readSidecar(new File(dir, stem+GENES_SUFFIX), buildId);
+            sampleNames = Collections.unmodifiableList(new ArrayList<>(readSidecar(new File(dir, stem+SAMPLES_SUFFIX), buildId)));
+            if (genes!=geneLines.size() || samples!=sampleNames.size()) {
+                throw new IOException("Expression store sidecars don't match "+stem+MATRIX_SUFFIX);
+            }
+            genePrimaryIDs = new ArrayList<>(geneLines.size());
+            geneNames = new ArrayList<>(geneLines.size());
+            geneIndex = new HashMap<>(geneLines.size()*2);
+            for (String line : geneLines) {
+                String[] fields = line.split("\t", -1);
+                geneIndex.put(fields[0], genePrimaryIDs.size());
+                genePrimaryIDs.add(fields[0]);
+                geneNames.add((fields.length>1 && fields[1].length()>0) ? fields[1] : null);
+            }
+            sampleIndex = new HashMap<>(sampleNames.size()*2);
+            for (int j=0; j<sampleNames.size(); j++) {
+                sampleIndex.put(sampleNames.get(j), j);
+            }
+            File sortedFile = new File(dir, stem+SORTED_SUFFIX);
+            MappedByteBuffer sortedBuffer = mapSorted(sortedFile, genes, samples, buildId);
+            if (sortedBuffer==null) {
+                sorted = null;
+                presentCounts = null;
+            } else {
+                presentCounts = new int[samples];
+                for (int j=0; j<samples; j++) {
+                    presentCounts[j] = sortedBuffer.getInt(HEADER_BYTES+4*j);
+                }
+                sortedBuffer.position(HEADER_BYTES+4*samples);
+                sorted = sortedBuffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+
+        /**
+         * Map the sorted sample columns, if they've been built and match the matrix.
+         */
+        static MappedByteBuffer mapSorted(File file, int genes, int samples, long buildId) throws IOException {
+            if (!file.exists()) return null;
+            try (RandomAccessFile sortedFile = new RandomAccessFile(file, "r");
+                 FileChannel channel = sortedFile.getChannel()) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0)!=SORTED_MAGIC || buffer.getInt(4)!=SORTED_VERSION || buffer.getInt(8)!=genes || buffer.getInt(12)!=samples ||
+                    buffer.getLong(16)!=buildId) {
+                    LOG.error("Ignoring sorted values that don't match the matrix: "+file.getName());
+                    return null;
+                }
+                return buffer;
+            }
+        }
+
+        public int getGeneCount() {
+            return genePrimaryIDs.size();
+        }
+
+        public int getSampleCount() {
+            return sampleNames.size();
+        }
+
+        public List<String> getSampleNames() {
+            return sampleNames;
+        }
+
+        /**
+         * @param genePrimaryID the Gene.primaryIdentifier
+         * @return the row index, or -1 if the gene has no values in this source
+         */
+        public int getGeneIndex(String genePrimaryID) {
+            Integer i = geneIndex.get(genePrimaryID);
+            return (i==null) ? -1 : i;
+        }
+
+        /**
+         * @param sampleName the sample name
+         * @return the column index, or -1 if the sample isn't in this source
+         */
+        public int getSampleIndex(String sampleName) {
+            Integer j = sampleIndex.get(sampleName);
+            return (j==null) ? -1 : j;
+        }
+
+        public String getGenePrimaryID(int i) {
+            return genePrimaryIDs.get(i);
+        }
+
+        public String getGeneName(int i) {
+            return geneNames.get(i);
+        }
+
+        /**
+         * @param i the gene row index
+         * @param j the sample column index
+         * @return the value, NaN if missing
+         */
+        public float get(int i, int j) {
+            return values.get(i*sampleNames.size()+j);
+        }
+
+        /**
+         * @param i the gene row index
+         * @return a zero-copy view of the gene's row, one value per sample, NaN where missing
+         */
+        public FloatBuffer getRow(int i) {
+            int n = sampleNames.size();
+            FloatBuffer row = values.duplicate();
+            row.position(i*n);
+            row.limit(i*n+n);
+            return row.slice();
+        }
+
+        /**
+         * @param genePrimaryID the Gene.primaryIdentifier
+         * @return a zero-copy view of the gene's row, or null if the gene has no values in this source
+         */
+        public FloatBuffer getRow(String genePrimaryID) {
+            int i = getGeneIndex(genePrimaryID);
+            return (i<0) ? null : getRow(i);
+        }
+
+        /**
+         * @return true if the sorted sample values have been built, so percentile ranks are available
+         */
+        public boolean hasPercentiles() {
+            return sorted!=null;
+        }
+
+        /**
+         * Return the percentile rank of a value among the gene values present in a sample: the percentage of values
+         * below it, counting ties as half below. Found by binary search in the sample's sorted present values; genes
+         * without a value in the sample aren't counted.
+         *
+         * @param j the sample column index
+         * @param value the value
+         * @return the percentile rank from 0 to 100, or NaN if percentiles aren't available or the sample has no values
+         */
+        public double getPercentile(int j, double value) {
+            if (sorted==null || Double.isNaN(value)) return Double.NaN;
+            int present = presentCounts[j];
+            if (present==0) return Double.NaN;
+            float v = (float) value;
+            int offset = j*genePrimaryIDs.size();
+            int below = search(offset, present, v, false);
+            int notAbove = search(offset, present, v, true);
+            return 100.0*(below + 0.5*(notAbove-below))/present;
+        }
+
+        /**
+         * Return the number of sorted values in [offset, offset+length) that are less than v, or not greater than v
+         * if inclusive.
+         */
+        int search(int offset, int length, float v, boolean inclusive) {
+            int low = 0;
+            int high = length;
+            while (low<high) {
+                int mid = (low+high)>>>1;
+                float x = sorted.get(offset+mid);
+                if (x<v || (inclusive && x==v)) {
+                    low = mid+1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @param genePrimaryIDs a subset of genes, e.g. the genes of a bag
+         * @return zero-copy views of the rows of the genes that have values in this source, in the given order
+         */
+        public Map<String,FloatBuffer> getRows(Collection<String> genePrimaryIDs) {
+            Map<String,FloatBuffer> rows = new LinkedHashMap<>();
+            for (String genePrimaryID : genePrimaryIDs) {
+                FloatBuffer row = getRow(genePrimaryID);
+                if (row!=null) rows.put(genePrimaryID, row);
+            }
+            return rows;
+        }
+    }
+}
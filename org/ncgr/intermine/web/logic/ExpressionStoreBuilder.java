@@ -0,0 +1,292 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+/**
+ * Exports ExpressionSources from the mine into the memory-mapped files read by ExpressionStore. This is meant to be run
+ * once per mine release, not on the request path; values are streamed one gene row at a time, so memory use is
+ * independent of the size of the source. Files are written alongside and moved into place when complete.
+ *
+ * Samples without a value for a gene are written as NaN, so a missing value is never mistaken for a measured 0.0.
+ * Each sample's values are also written sorted, to the stem.sorted file, so that ExpressionStore can give the
+ * percentile rank of a value within its sample with a binary search.
+ *
+ * @author Sam Hokin
+ */
+public class ExpressionStoreBuilder {
+
+    protected static final Logger LOG = Logger.getLogger(ExpressionStoreBuilder.class);
+
+    /**
+     * Export every ExpressionSource into the store directory.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param dir the store directory
+     * @return the sources that were exported
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if a file can't be written
+     */
+    public static List<String> buildAll(PathQueryExecutor executor, Model model, File dir) throws ObjectStoreException, IOException {
+        List<String> sources = getSources(executor, model);
+        for (String source : sources) {
+            build(executor, model, source, dir);
+        }
+        return sources;
+    }
+
+    /**
+     * Query every ExpressionSource, in primaryIdentifier order.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @return the ExpressionSource primaryIdentifiers
+     * @throws ObjectStoreException if the query fails
+     */
+    public static List<String> getSources(PathQueryExecutor executor, Model model) throws ObjectStoreException {
+        List<String> sources = new ArrayList<>();
+        PathQuery query = new PathQuery(model);
+        query.addView("ExpressionSource.primaryIdentifier"); // 0
+        query.addOrderBy("ExpressionSource.primaryIdentifier", OrderDirection.ASC);
+        ExportResultsIterator result = executor.execute(query);
+        while (result.hasNext()) {
+            List<ResultElement> row = result.next();
+            sources.add((String) row.get(0).getField());
+        }
+        return sources;
+    }
+
+    /**
+     * Export a single ExpressionSource into the store directory.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param dir the store directory
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if a file can't be written
+     */
+    public static void build(PathQueryExecutor executor, Model model, String source, File dir) throws ObjectStoreException, IOException {
+        long start = System.currentTimeMillis();
+        String stem = ExpressionStore.getFileStem(source);
+        File matrixFile = new File(dir, stem+ExpressionStore.MATRIX_SUFFIX);
+        File genesFile = new File(dir, stem+ExpressionStore.GENES_SUFFIX);
+        File samplesFile = new File(dir, stem+ExpressionStore.SAMPLES_SUFFIX);
+        File matrixTmp = new File(dir, matrixFile.getName()+".tmp");
+        File genesTmp = new File(dir, genesFile.getName()+".tmp");
+        File samplesTmp = new File(dir, samplesFile.getName()+".tmp");
+        File sortedFile = new File(dir, stem+ExpressionStore.SORTED_SUFFIX);
+        File sortedTmp = new File(dir, sortedFile.getName()+".tmp");
+
+        // samples, in the same order as the expression charts
+        List<String> sampleNames = new ArrayList<>();
+        ExportResultsIterator samplesResult = executor.execute(getSamplesQuery(model, source));
+        while (samplesResult.hasNext()) {
+            List<ResultElement> row = samplesResult.next();
+            sampleNames.add((String) row.get(0).getField()); // 0 ExpressionSample.name
+        }
+        Map<String,Integer> sampleIndex = new HashMap<>();
+        for (int j=0; j<sampleNames.size(); j++) {
+            sampleIndex.put(sampleNames.get(j), j);
+        }
+        // every file of this build carries the same id, so a reader never pairs files from two builds
+        long buildId = ExpressionStore.newBuildId();
+        try (Writer samplesWriter = newWriter(samplesTmp)) {
+            ExpressionStore.writeBuildLine(samplesWriter, buildId);
+            for (String sampleName : sampleNames) {
+                samplesWriter.write(sampleName);
+                samplesWriter.write('\n');
+            }
+        }
+
+        // values, one gene row at a time
+        int n = sampleNames.size();
+        int genes = 0;
+        ByteBuffer row = ByteBuffer.allocate(4*n).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile file = new RandomAccessFile(matrixTmp, "rw");
+             FileChannel channel = file.getChannel();
+             Writer genesWriter = newWriter(genesTmp)) {
+            ExpressionStore.writeBuildLine(genesWriter, buildId);
+            channel.truncate(0);
+            channel.position(ExpressionStore.HEADER_BYTES);
+            ExportResultsIterator valuesResult = executor.execute(getValuesQuery(model, source));
+            String currentGene = null;
+            while (valuesResult.hasNext()) {
+                List<ResultElement> valueRow = valuesResult.next();
+                String genePrimaryID = (String) valueRow.get(0).getField(); // 0 ExpressionValue.feature.primaryIdentifier
+                String geneName = (String) valueRow.get(1).getField();      // 1 ExpressionValue.feature.name
+                String sampleName = (String) valueRow.get(2).getField();    // 2 ExpressionValue.sample.name
+                Double value = (Double) valueRow.get(3).getField();         // 3 ExpressionValue.value
+                if (!Objects.equals(genePrimaryID, currentGene)) {
+                    if (currentGene!=null) {
+                        writeRow(channel, row);
+                    }
+                    currentGene = genePrimaryID;
+                    genes++;
+                    genesWriter.write(genePrimaryID);
+                    genesWriter.write('\t');
+                    if (geneName!=null) genesWriter.write(geneName);
+                    genesWriter.write('\n');
+                    for (int j=0; j<n; j++) row.putFloat(4*j, Float.NaN);
+                }
+                Integer j = sampleIndex.get(sampleName);
+                if (j!=null) row.putFloat(4*j, value.floatValue());
+            }
+            if (currentGene!=null) {
+                writeRow(channel, row);
+            }
+            // now that we know the gene count, write the header
+            ByteBuffer header = ByteBuffer.allocate(ExpressionStore.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(ExpressionStore.MAGIC);
+            header.putInt(ExpressionStore.VERSION);
+            header.putInt(genes);
+            header.putInt(n);
+            header.putLong(buildId);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+            writeSorted(channel, genes, n, buildId, sortedTmp);
+        }
+
+        // move into place, sidecars first so a reader never sees a matrix without them; a reader that maps between
+        // the moves finds mismatched build ids and falls back to the query until the last move is done
+        Files.move(samplesTmp.toPath(), samplesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(genesTmp.toPath(), genesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(sortedTmp.toPath(), sortedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(matrixTmp.toPath(), matrixFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        ExpressionStore store = ExpressionStore.getInstance(dir.getPath());
+        if (store!=null) store.release(source);
+        LOG.info("Exported expression source "+source+": "+genes+" genes x "+n+" samples in "+(System.currentTimeMillis()-start)+" ms.");
+    }
+
+    /**
+     * Write a full row buffer to the channel.
+     */
+    static void writeRow(FileChannel channel, ByteBuffer row) throws IOException {
+        row.clear();
+        while (row.hasRemaining()) {
+            channel.write(row);
+        }
+    }
+
+    /**
+     * Write each sample's column of the finished matrix, sorted ascending, to the sorted file: the same header as the
+     * matrix, with its own magic and version, each sample's count of present values as a little-endian int32, then the columns as little-endian
+     * float32 values, sample-major. A column's present values come first and its missing NaNs, which sort last, fill
+     * the rest. One column is held at a time.
+     */
+    static void writeSorted(FileChannel matrixChannel, int genes, int n, long buildId, File sortedFile) throws IOException {
+        MappedByteBuffer mapped = matrixChannel.map(FileChannel.MapMode.READ_ONLY, 0, matrixChannel.size());
+        mapped.position(ExpressionStore.HEADER_BYTES);
+        FloatBuffer matrix = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        float[] column = new float[genes];
+        ByteBuffer bytes = ByteBuffer.allocate(4*genes).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile file = new RandomAccessFile(sortedFile, "rw");
+             FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(ExpressionStore.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(ExpressionStore.SORTED_MAGIC);
+            header.putInt(ExpressionStore.SORTED_VERSION);
+            header.putInt(genes);
+            header.putInt(n);
+            header.putLong(buildId);
+            writeRow(channel, header);
+            // the present counts go between the header and the columns, so they're filled in as each column is sorted
+            ByteBuffer counts = ByteBuffer.allocate(4*n).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(ExpressionStore.HEADER_BYTES+4L*n);
+            for (int j=0; j<n; j++) {
+                int present = 0;
+                for (int i=0; i<genes; i++) {
+                    column[i] = matrix.get(i*n+j);
+                    if (!Float.isNaN(column[i])) present++;
+                }
+                // Arrays.sort puts NaN after every number
+                Arrays.sort(column);
+                counts.putInt(4*j, present);
+                bytes.clear();
+                bytes.asFloatBuffer().put(column);
+                writeRow(channel, bytes);
+            }
+            counts.clear();
+            long position = ExpressionStore.HEADER_BYTES;
+            while (counts.hasRemaining()) {
+                position += channel.write(counts, position);
+            }
+            channel.force(true);
+        }
+    }
+
+    static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a path query to retrieve all the sample names of a source, in chart order.
+     *
+     * @param model the model
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getSamplesQuery(Model model, String source) {
+        PathQuery query = new PathQuery(model);
+        query.addView("ExpressionSample.name"); // 0
+        query.addConstraint(Constraints.eq("ExpressionSample.source.primaryIdentifier", source));
+        query.addOrderBy("ExpressionSample.replicateGroup", OrderDirection.ASC);
+        query.addOrderBy("ExpressionSample.name", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Samples query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve all the expression values of a source, gene by gene.
+     *
+     * @param model the model
+     * @param source the ExpressionSource.primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getValuesQuery(Model model, String source) {
+        PathQuery query = new PathQuery(model);
+        query.addView("ExpressionValue.feature.primaryIdentifier"); // 0
+        query.addView("ExpressionValue.feature.name");              // 1
+        query.addView("ExpressionValue.sample.name");               // 2
+        query.addView("ExpressionValue.value");                     // 3
+        query.addConstraint(Constraints.eq("ExpressionValue.sample.source.primaryIdentifier", source));
+        query.addConstraint(Constraints.isNotNull("ExpressionValue.value"));
+        query.addOrderBy("ExpressionValue.feature.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Values query invalid: "+verifyList);
+        return query;
+    }
+}
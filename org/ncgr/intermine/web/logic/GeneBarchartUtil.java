@@ -0,0 +1,454 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.StringWriter;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import org.ncgr.intermine.web.logic.ExpressionSampleCache.SourceMetadata;
+
+/**
+ * Static methods that build the per-source expression bar charts of a single gene, shared by GeneBarchartDisplayer
+ * and the GeneBarchartAction JSON endpoint that loads the other sources on demand.
+ *
+ * @author Sam Hokin
+ */
+public class GeneBarchartUtil {
+
+    /**
+     * Read the bar chart value encoding: the request parameter if given, otherwise barchart.encoding in web.properties.
+     *
+     * @param webProps the web properties, which may be null
+     * @param parameter the encoding request parameter, which may be null
+     * @return the encoding
+     */
+    public static ExpressionEncoding.Type getEncoding(Properties webProps, String parameter) {
+        String encodingName = parameter;
+        if (encodingName==null && webProps!=null) encodingName = webProps.getProperty("barchart.encoding");
+        return ExpressionEncoding.Type.fromString(encodingName);
+    }
+
+    /**
+     * Read whether bar charts are aggregated by replicate group: the request parameter if given, otherwise
+     * barchart.aggregate in web.properties (default false).
+     *
+     * @param webProps the web properties, which may be null
+     * @param parameter the aggregate request parameter, which may be null
+     * @return true if values are sent as per-group mean, SD and n
+     */
+    public static boolean isAggregate(Properties webProps, String parameter) {
+        if (parameter!=null) return Boolean.parseBoolean(parameter.trim());
+        return webProps!=null && Boolean.parseBoolean(webProps.getProperty("barchart.aggregate", "false"));
+    }
+
+    /**
+     * Return the sources with expression values for the given gene, alphabetically, with their cached sample metadata.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param sampleCache the sample metadata cache
+     * @param geneID the gene primaryIdentifier
+     * @return the sources' metadata
+     * @throws ObjectStoreException if a query fails
+     */
+    public static List<SourceMetadata> getSources(PathQueryExecutor executor, Model model, ExpressionSampleCache sampleCache, String geneID)
+        throws ObjectStoreException {
+        return new ArrayList<>(sampleCache.getAll(executor, model, getSourceIdentifiers(executor, model, geneID)).values());
+    }
+
+    /**
+     * @return the primaryIdentifiers of the sources with expression values for the given gene, alphabetically
+     */
+    static List<String> getSourceIdentifiers(PathQueryExecutor executor, Model model, String geneID) throws ObjectStoreException {
+        List<String> sources = new ArrayList<>();
+        ExportResultsIterator sourcesResult = executor.execute(getSourcesQuery(model, geneID));
+        while (sourcesResult.hasNext()) {
+            List<ResultElement> row = sourcesResult.next();
+            if (row==null || row.get(0)==null || row.get(0).getField()==null) {
+                throw new RuntimeException("Null row or row element retrieving sources.");
+            }
+            sources.add((String) row.get(0).getField()); // 0 ExpressionValue.sample.source.primaryIdentifier
+        }
+        return sources;
+    }
+
+    /**
+     * Return the bar charts of the given gene. The values of sources in the ExpressionStore are read from their stored
+     * rows, which also give the percentile rank of each value within its sample; only the other sources' values are
+     * queried. The samples and their attributes come from the sample metadata cache, and each value is placed by its
+     * sample's index.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param sampleCache the sample metadata cache
+     * @param store the ExpressionStore, or null
+     * @param geneID the gene primaryIdentifier
+     * @param source the primaryIdentifier of a single ExpressionSource, or null for all sources
+     * @return the charts, alphabetically by source
+     * @throws ObjectStoreException if a query fails
+     */
+    public static List<SourceChart> getCharts(PathQueryExecutor executor, Model model, ExpressionSampleCache sampleCache, ExpressionStore store,
+                                              String geneID, String source) throws ObjectStoreException {
+        List<String> identifiers = (source!=null) ? Collections.singletonList(source) : getSourceIdentifiers(executor, model, geneID);
+        // the stored sources that have this gene are read from the store, the rest are queried
+        Map<String,ExpressionStore.Source> storedSources = new HashMap<>();
+        Map<String,FloatBuffer> storedRows = new HashMap<>();
+        List<String> queried = new ArrayList<>();
+        for (String identifier : identifiers) {
+            ExpressionStore.Source stored = (store==null || !store.hasSource(identifier)) ? null : store.getSource(identifier);
+            FloatBuffer row = (stored==null) ? null : stored.getRow(geneID);
+            if (row!=null) {
+                storedSources.put(identifier, stored);
+                storedRows.put(identifier, row);
+            } else {
+                queried.add(identifier);
+            }
+        }
+        // a single gene has few values, so they're gathered by source before the metadata of all their sources is fetched at once
+        Map<String,Map<String,Double>> sourceValues = new HashMap<>();
+        if (!queried.isEmpty()) {
+            ExportResultsIterator valuesResult = executor.execute(getValuesQuery(model, geneID, queried));
+            while (valuesResult.hasNext()) {
+                List<ResultElement> row = valuesResult.next();
+                if (row==null || row.get(0)==null || row.get(0).getField()==null) {
+                    throw new RuntimeException("Null row or row element retrieving expression values.");
+                }
+                String identifier = (String) row.get(0).getField(); // 0 ExpressionValue.sample.source.primaryIdentifier
+                String sample = (String) row.get(1).getField();     // 1 ExpressionValue.sample.name
+                Double value = (Double) row.get(2).getField();      // 2 ExpressionValue.value
+                Map<String,Double> values = sourceValues.get(identifier);
+                if (values==null) {
+                    values = new HashMap<>();
+                    sourceValues.put(identifier, values);
+                }
+                values.put(sample, value);
+            }
+        }
+        List<String> chartSources = new ArrayList<>();
+        for (String identifier : identifiers) {
+            if (storedRows.containsKey(identifier) || sourceValues.containsKey(identifier)) chartSources.add(identifier);
+        }
+        List<SourceChart> charts = new ArrayList<>();
+        Map<String,SourceMetadata> metadata = sampleCache.getAll(executor, model, chartSources);
+        for (SourceMetadata sourceMetadata : metadata.values()) {
+            SourceChart chart = new SourceChart(sourceMetadata);
+            ExpressionStore.Source stored = storedSources.get(sourceMetadata.getIdentifier());
+            if (stored!=null) {
+                chart.setValues(stored, storedRows.get(sourceMetadata.getIdentifier()));
+                if (stored.hasPercentiles()) chart.setPercentiles(stored);
+            } else {
+                for (Map.Entry<String,Double> entry : sourceValues.get(sourceMetadata.getIdentifier()).entrySet()) {
+                    chart.setValue(entry.getKey(), entry.getValue());
+                }
+            }
+            charts.add(chart);
+        }
+        return charts;
+    }
+
+    /**
+     * Create a path query to retrieve the expression sources associated with the given gene, alphabetically by ExpressionSource.primaryIdentifier.
+     *
+     * @param model the model
+     * @param geneID the gene for which sources are queried
+     * @return the path query
+     */
+    public static PathQuery getSourcesQuery(Model model, String geneID) {
+        PathQuery query = new PathQuery(model);
+        query.addView("ExpressionValue.sample.source.primaryIdentifier"); // 0
+        query.addConstraint(Constraints.eq("ExpressionValue.feature.primaryIdentifier", geneID));
+        query.addOrderBy("ExpressionValue.sample.source.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Sources query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve the expression values of the given gene, ordered by ExpressionSource.primaryIdentifier.
+     *
+     * @param model the model
+     * @param geneID the gene primaryIdentifier
+     * @param source the primaryIdentifier of a single ExpressionSource, or null for all sources
+     * @return the path query
+     */
+    public static PathQuery getValuesQuery(Model model, String geneID, String source) {
+        return getValuesQuery(model, geneID, (source==null) ? null : Collections.singletonList(source));
+    }
+
+    /**
+     * Create a path query to retrieve the expression values of the given gene in the given sources, ordered by
+     * ExpressionSource.primaryIdentifier.
+     *
+     * @param model the model
+     * @param geneID the gene primaryIdentifier
+     * @param sources the ExpressionSource primaryIdentifiers, or null for all sources
+     * @return the path query
+     */
+    public static PathQuery getValuesQuery(Model model, String geneID, Collection<String> sources) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "ExpressionValue.sample.source.primaryIdentifier", // 0
+                       "ExpressionValue.sample.name",                     // 1
+                       "ExpressionValue.value"                            // 2
+                       );
+        query.addConstraint(Constraints.eq("ExpressionValue.feature.primaryIdentifier", geneID));
+        if (sources!=null) {
+            query.addConstraint(Constraints.oneOfValues("ExpressionValue.sample.source.primaryIdentifier", sources));
+        }
+        query.addOrderBy("ExpressionValue.sample.source.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Values query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * One source's bar chart: the source's cached sample metadata plus this gene's values, by sample index.
+     */
+    public static class SourceChart {
+        final SourceMetadata metadata;
+        // missing or null values stay 0.0
+        final double[] values;
+        // the samples with a value, which are the only ones counted in a replicate group
+        final BitSet present;
+        // the percentile rank of each value within its sample, NaN where unknown; null if not available
+        double[] percentiles;
+
+        SourceChart(SourceMetadata metadata) {
+            this.metadata = metadata;
+            this.values = new double[metadata.getSampleNames().size()];
+            this.present = new BitSet(values.length);
+        }
+
+        /**
+         * Place a sample's value by the sample's index.
+         *
+         * @param sample the sample name
+         * @param value the value, which may be null
+         * @return false if the sample isn't one of the source's samples, in which case the value is dropped
+         */
+        boolean setValue(String sample, Double value) {
+            int j = metadata.getSampleIndex(sample);
+            if (j<0) return false;
+            values[j] = (value==null) ? 0.0 : value;
+            if (value!=null) present.set(j);
+            return true;
+        }
+
+        /**
+         * Place the values of the gene's stored row by sample index; NaN cells are missing.
+         *
+         * @param stored the source's ExpressionStore matrix
+         * @param row the gene's row of the stored matrix
+         */
+        void setValues(ExpressionStore.Source stored, FloatBuffer row) {
+            List<String> sampleNames = metadata.getSampleNames();
+            for (int j=0; j<values.length; j++) {
+                int column = stored.getSampleIndex(sampleNames.get(j));
+                if (column<0) continue;
+                float value = row.get(column);
+                if (Float.isNaN(value)) continue;
+                values[j] = value;
+                present.set(j);
+            }
+        }
+
+        /**
+         * Look up the percentile rank of each value within its sample in the stored source.
+         *
+         * @param stored the source's ExpressionStore matrix, with percentiles
+         */
+        void setPercentiles(ExpressionStore.Source stored) {
+            percentiles = new double[values.length];
+            List<String> sampleNames = metadata.getSampleNames();
+            for (int j=0; j<values.length; j++) {
+                int column = stored.getSampleIndex(sampleNames.get(j));
+                percentiles[j] = (present.get(j) && column>=0) ? stored.getPercentile(column, values[j]) : Double.NaN;
+            }
+        }
+
+        /**
+         * @return the percentile rank of each value within its sample, NaN where unknown, or null if not available
+         */
+        public double[] getPercentiles() {
+            return percentiles;
+        }
+
+        public SourceMetadata getMetadata() {
+            return metadata;
+        }
+
+        public String getIdentifier() {
+            return metadata.getIdentifier();
+        }
+
+        public String getUnit() {
+            return metadata.getUnit();
+        }
+
+        public String getSourceJSON() {
+            return metadata.getSourceJSON();
+        }
+
+        public String getDescriptionsJSON() {
+            return metadata.getDescriptionsJSON();
+        }
+
+        public String getTissuesJSON() {
+            return metadata.getTissuesJSON();
+        }
+
+        public String getTreatmentsJSON() {
+            return metadata.getTreatmentsJSON();
+        }
+
+        public String getGenotypesJSON() {
+            return metadata.getGenotypesJSON();
+        }
+
+        /**
+         * Return the canvasXpress bar chart JSON for this source,
+         * {"x":{"repgroup":[...],"percentile":[...]},"y":{"vars":[gene],"smps":[...],"data":[[...]]}}, with the cached
+         * sample JSON written through as-is. "percentile" is only present if the source's percentiles are available.
+         *
+         * @param geneID the gene primaryIdentifier, the single canvasXpress var
+         * @param encoding the encoding of the values
+         * @return the JSON string
+         */
+        public String toBarchartJSON(String geneID, ExpressionEncoding.Type encoding) {
+            StringWriter json = new StringWriter();
+            json.append("{\"x\":{");
+            if (metadata.getSampleRepgroups().size()>0) {
+                json.append("\"repgroup\":").append(metadata.getRepgroupsJSON());
+            }
+            if (percentiles!=null) {
+                if (metadata.getSampleRepgroups().size()>0) json.append(',');
+                json.append("\"percentile\":").append(getPercentilesJSON(percentiles));
+            }
+            json.append("}");
+            json.append(",\"y\":{\"vars\":[").append(JSONObject.quote(geneID)).append("]");
+            json.append(",\"smps\":").append(metadata.getSamplesJSON());
+            JSONWriter writer = new JSONWriter(json);
+            if (encoding==ExpressionEncoding.Type.JSON) {
+                json.append(",\"data\":");
+                writer.array();
+                writer.array();
+                for (double value : values) writer.value(value);
+                writer.endArray();
+                writer.endArray();
+            } else {
+                json.append(",\"encodedData\":");
+                ExpressionEncoding.write(writer, values, 1, values.length, encoding);
+            }
+            json.append("}}");
+            return json.toString();
+        }
+
+        /**
+         * Return the bar chart JSON with the values aggregated by replicate group, one bar per group with its standard
+         * deviation and the number of samples with values:
+         * {"x":{"n":[...],"percentile":[...]},"y":{"vars":[gene],"smps":[group,...],"data":[[mean,...]],"sd":[[...]]},"aggregated":true},
+         * where "percentile" is the mean percentile rank of each group's samples.
+         * With a binary encoding the means and SDs are sent as "encodedData" and "encodedSd" blocks.
+         *
+         * @param geneID the gene primaryIdentifier, the single canvasXpress var
+         * @param encoding the encoding of the values
+         * @return the JSON string
+         */
+        public String toAggregatedBarchartJSON(String geneID, ExpressionEncoding.Type encoding) {
+            ReplicateGroups.Aggregate aggregate = metadata.getReplicateGroups().aggregate(values, present);
+            double[] means = aggregate.getMeans();
+            double[] sd = aggregate.getStandardDeviations();
+            StringWriter json = new StringWriter();
+            JSONWriter writer = new JSONWriter(json);
+            json.append("{\"x\":{\"n\":");
+            writer.array();
+            for (int n : aggregate.getCounts()) writer.value(n);
+            writer.endArray();
+            if (percentiles!=null) {
+                // the mean percentile rank of the group's samples
+                BitSet ranked = new BitSet(percentiles.length);
+                for (int j=0; j<percentiles.length; j++) {
+                    if (!Double.isNaN(percentiles[j])) ranked.set(j);
+                }
+                ReplicateGroups.Aggregate percentileAggregate = metadata.getReplicateGroups().aggregate(percentiles, ranked);
+                double[] groupPercentiles = percentileAggregate.getMeans();
+                int[] counts = percentileAggregate.getCounts();
+                for (int g=0; g<counts.length; g++) {
+                    if (counts[g]==0) groupPercentiles[g] = Double.NaN;
+                }
+                json.append(",\"percentile\":").append(getPercentilesJSON(groupPercentiles));
+            }
+            json.append("},\"y\":{\"vars\":[").append(JSONObject.quote(geneID)).append("]");
+            json.append(",\"smps\":").append(metadata.getGroupsJSON());
+            if (encoding==ExpressionEncoding.Type.JSON) {
+                json.append(",\"data\":");
+                writeRow(new JSONWriter(json), means);
+                json.append(",\"sd\":");
+                writeRow(new JSONWriter(json), sd);
+            } else {
+                json.append(",\"encodedData\":");
+                ExpressionEncoding.write(new JSONWriter(json), means, 1, means.length, encoding);
+                json.append(",\"encodedSd\":");
+                ExpressionEncoding.write(new JSONWriter(json), sd, 1, sd.length, encoding);
+            }
+            json.append("},\"aggregated\":true}");
+            return json.toString();
+        }
+
+        /**
+         * Return the raw or aggregated bar chart JSON.
+         *
+         * @param geneID the gene primaryIdentifier
+         * @param encoding the encoding of the values
+         * @param aggregate true to aggregate the values by replicate group
+         * @return the JSON string
+         */
+        public String toBarchartJSON(String geneID, ExpressionEncoding.Type encoding, boolean aggregate) {
+            return aggregate ? toAggregatedBarchartJSON(geneID, encoding) : toBarchartJSON(geneID, encoding);
+        }
+
+        /**
+         * @return percentile ranks to one decimal place as a JSON array, null where unknown
+         */
+        static String getPercentilesJSON(double[] percentiles) {
+            StringBuilder json = new StringBuilder();
+            json.append('[');
+            for (int j=0; j<percentiles.length; j++) {
+                if (j>0) json.append(',');
+                if (Double.isNaN(percentiles[j])) {
+                    json.append("null");
+                } else {
+                    json.append(Math.round(percentiles[j]*10.0)/10.0);
+                }
+            }
+            json.append(']');
+            return json.toString();
+        }
+
+        static void writeRow(JSONWriter writer, double[] row) {
+            writer.array();
+            writer.array();
+            for (double value : row) writer.value(value);
+            writer.endArray();
+            writer.endArray();
+        }
+    }
+}
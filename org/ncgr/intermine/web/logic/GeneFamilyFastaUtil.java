@@ -0,0 +1,149 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.query.ClobAccess;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+/**
+ * Static methods for the ANNOTATE button on a list of CDSes, Transcripts, MRNAs or Proteins: the queries for the list's
+ * gene families, and the multi-FASTA of a family's sequences, written straight from each sequence's ClobAccess in
+ * chunks so that only one chunk of residues is held at a time.
+ *
+ * @author Sam Hokin
+ */
+public class GeneFamilyFastaUtil {
+
+    // chars of residues read from a ClobAccess at a time
+    static final int CHUNK_SIZE = 64*1024;
+
+    /**
+     * @param bagType the list type
+     * @return true if the list type has sequences and gene families
+     */
+    public static boolean isSupportedType(String bagType) {
+        return bagType.equals("CDS") || bagType.equals("Transcript") || bagType.equals("MRNA") || bagType.equals("Protein");
+    }
+
+    /**
+     * @param bagType the list type
+     * @return "p" for Proteins, "n" otherwise
+     */
+    public static String getSequenceType(String bagType) {
+        return bagType.equals("Protein") ? "p" : "n";
+    }
+
+    /**
+     * @param bagType the list type
+     * @return the path from the list type to its GeneFamily
+     */
+    static String getGeneFamilyPath(String bagType) {
+        if (bagType.equals("Protein")) {
+            return "Protein.geneFamilyAssignments.geneFamily";
+        } else if (bagType.equals("Transcript")) {
+            return "Transcript.gene.geneFamily";
+        } else {
+            return bagType+".gene.geneFamilyAssignments.geneFamily";
+        }
+    }
+
+    /**
+     * Create a path query to retrieve the list's objects that have sequences with their gene families, without residues, by
+     * gene family.
+     *
+     * @param model the model
+     * @param bagIds the IDs of the list
+     * @return the path query
+     */
+    public static PathQuery getFamiliesQuery(Model model, BagIds bagIds) {
+        String type = bagIds.getType();
+        String family = getGeneFamilyPath(type);
+        PathQuery query = new PathQuery(model);
+        query.addView(type+".primaryIdentifier");    // 0
+        query.addView(family+".primaryIdentifier");  // 1
+        query.addView(family+".description");        // 2
+        query.addOrderBy(family+".primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy(type+".primaryIdentifier", OrderDirection.ASC);
+        query.addConstraint(bagIds.in(type));
+        // only the objects with a sequence are counted, as only they are in the FASTA
+        query.addConstraint(Constraints.isNotNull(type+".sequence"));
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Gene families query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve the residues of the list's objects, by gene family.
+     *
+     * @param model the model
+     * @param bagIds the IDs of the list
+     * @param geneFamily the GeneFamily.primaryIdentifier, or null for every family
+     * @return the path query
+     */
+    public static PathQuery getSequencesQuery(Model model, BagIds bagIds, String geneFamily) {
+        String type = bagIds.getType();
+        String family = getGeneFamilyPath(type);
+        PathQuery query = new PathQuery(model);
+        query.addView(type+".primaryIdentifier");    // 0
+        query.addView(type+".sequence.residues");    // 1
+        query.addView(family+".primaryIdentifier");  // 2
+        query.addOrderBy(family+".primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy(type+".primaryIdentifier", OrderDirection.ASC);
+        query.addConstraint(bagIds.in(type));
+        if (geneFamily!=null) {
+            query.addConstraint(Constraints.eq(family+".primaryIdentifier", geneFamily));
+        }
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Sequences query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Write the multi-FASTA of a gene family's sequences in the list, or of every family's.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bagIds the IDs of the list
+     * @param geneFamily the GeneFamily.primaryIdentifier, or null for every family
+     * @param out the Writer
+     * @return the number of sequences written
+     * @throws ObjectStoreException if the query fails
+     * @throws IOException if the Writer fails
+     */
+    public static int writeFasta(PathQueryExecutor executor, Model model, BagIds bagIds, String geneFamily, Writer out)
+        throws ObjectStoreException, IOException {
+        ExportResultsIterator resultsIterator = executor.execute(getSequencesQuery(model, bagIds, geneFamily));
+        int count = 0;
+        while (resultsIterator.hasNext()) {
+            List<ResultElement> valueRow = resultsIterator.next();
+            String primaryIdentifier = (String) valueRow.get(0).getField();
+            ClobAccess clob = (ClobAccess) valueRow.get(1).getField();
+            String geneFamilyIdentifier = (String) valueRow.get(2).getField();
+            out.write(">"+primaryIdentifier+" type="+bagIds.getType()+";gene_family="+geneFamilyIdentifier+"\n");
+            if (clob!=null) writeResidues(clob, out);
+            out.write('\n');
+            count++;
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Copy residues to the Writer a chunk at a time, rather than expanding the whole clob into one String.
+     */
+    static void writeResidues(ClobAccess clob, Writer out) throws IOException {
+        int length = clob.length();
+        for (int start=0; start<length; start+=CHUNK_SIZE) {
+            out.write(clob.subSequence(start, Math.min(start+CHUNK_SIZE, length)).toString());
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only access to the memory-mapped genotype matrices written by GenotypeStoreBuilder, one per MappingPopulation
+ * and one per GenotypingStudy.
+ *
+ * Each matrix has four files in the store directory, named by getFileStem():
+ *   stem.geno    - a 24-byte header (magic, version, marker count, line count, build id) followed by the calls packed
+ *                  two bits each as in PackedGenotypeMatrix, in little-endian longs; each marker's row starts on a new long
+ *   stem.markers - a build line, then marker primaryIdentifier, one line per row
+ *   stem.lines   - a build line, then line primaryIdentifier, one line per column
+ *   stem.escapes - a build line, then row TAB column TAB call, for calls other than A, B and H
+ *
+ * As in ExpressionStore, every file carries the build's id, and a matrix whose files come from different builds isn't
+ * mapped.
+ *
+ * Calls are read straight from the mapped file; slice() copies just the requested markers and lines into a
+ * PackedGenotypeMatrix.
+ *
+ * @author Sam Hokin
+ */
+public class GenotypeStore {
+
+    protected static final Logger LOG = Logger.getLogger(GenotypeStore.class);
+
+    static final int MAGIC = 0x47454E4F; // "GENO"
+    // 2: the header and sidecars carry a build id
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 24;
+
+    static final String MATRIX_SUFFIX = ".geno";
+    static final String MARKERS_SUFFIX = ".markers";
+    static final String LINES_SUFFIX = ".lines";
+    static final String ESCAPES_SUFFIX = ".escapes";
+
+    /**
+     * The kind of collection a matrix holds.
+     */
+    public enum Kind {
+        POPULATION("population"), STUDY("study");
+
+        final String prefix;
+
+        Kind(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private static final Map<String,GenotypeStore> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final Map<String,Matrix> matrices = new ConcurrentHashMap<>();
+
+    GenotypeStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Return the store in the given directory, e.g. the genotype.store.dir web property.
+     *
+     * @param dir the store directory path, which may be null
+     * @return the store, or null if dir is null or isn't a directory
+     */
+    public static GenotypeStore getInstance(String dir) {
+        if (dir==null || dir.trim().length()==0) return null;
+        File file = new File(dir.trim());
+        if (!file.isDirectory()) return null;
+        return INSTANCES.computeIfAbsent(file.getAbsolutePath(), path -> new GenotypeStore(new File(path)));
+    }
+
+    /**
+     * @return the directory holding the store files
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @return true if the store has a matrix for it
+     */
+    public boolean hasMatrix(Kind kind, String primaryIdentifier) {
+        String stem = getFileStem(kind, primaryIdentifier);
+        return matrices.containsKey(stem) || new File(dir, stem+MATRIX_SUFFIX).exists();
+    }
+
+    /**
+     * Get a mapped matrix, mapping it on first use.
+     *
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @return the matrix, or null if it isn't in the store
+     */
+    public Matrix getMatrix(Kind kind, String primaryIdentifier) {
+        String stem = getFileStem(kind, primaryIdentifier);
+        Matrix mapped = matrices.get(stem);
+        if (mapped!=null || !hasMatrix(kind, primaryIdentifier)) return mapped;
+        synchronized (this) {
+            mapped = matrices.get(stem);
+            if (mapped==null) {
+                try {
+                    mapped = new Matrix(dir, stem);
+                    matrices.put(stem, mapped);
+                } catch (IOException e) {
+                    LOG.error("Error mapping genotype store for "+stem+": "+e.toString());
+                    return null;
+                }
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Forget a mapped matrix, e.g. after it's been rebuilt; the next getMatrix() maps the new files.
+     *
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     */
+    public void release(Kind kind, String primaryIdentifier) {
+        matrices.remove(getFileStem(kind, primaryIdentifier));
+    }
+
+    /**
+     * Form a file name stem from the kind and primaryIdentifier, replacing characters that aren't safe in file names.
+     *
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @return the file name stem
+     */
+    public static String getFileStem(Kind kind, String primaryIdentifier) {
+        return kind.prefix+"-"+primaryIdentifier.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * @param lineCount the number of lines
+     * @return the number of longs in each marker's row
+     */
+    static int getWordsPerRow(int lineCount) {
+        return (lineCount+PackedGenotypeMatrix.CALLS_PER_WORD-1)/PackedGenotypeMatrix.CALLS_PER_WORD;
+    }
+
+    /**
+     * The mapped markers x lines calls of a single population or study.
+     */
+    public static class Matrix {
+        final List<String> markers;
+        final Map<String,Integer> markerIndex;
+        final List<String> lines;
+        final Map<String,Integer> lineIndex;
+        // non-standard calls, by ascending row*lines+column position, as indices into a table of distinct calls
+        final long[] escapePositions;
+        final int[] escapeCalls;
+        final String[] escapeTable;
+        final int wordsPerRow;
+        final LongBuffer words;
+
+        Matrix(File dir, String stem) throws IOException {
+            long buildId;
+            int markerCount;
+            int lineCount;
+            try (RandomAccessFile file = new RandomAccessFile(new File(dir, stem+MATRIX_SUFFIX), "r");
+                 FileChannel channel = file.getChannel()) {
+                // the mapping stays valid after the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt(0)!=MAGIC || buffer.getInt(4)!=VERSION) {
+                    throw new IOException("Not a genotype store file: "+stem+MATRIX_SUFFIX);
+                }
+                markerCount = buffer.getInt(8);
+                lineCount = buffer.getInt(12);
+                buildId = buffer.getLong(16);
+                buffer.position(HEADER_BYTES);
+                words = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+            // the sidecars must come from the same build as the matrix
+            markers = Collections.unmodifiableList(new ArrayList<>(ExpressionStore.readSidecar(new File(dir, stem+MARKERS_SUFFIX), buildId)));
+            lines = Collections.unmodifiableList(new ArrayList<>(ExpressionStore.readSidecar(new File(dir, stem+LINES_SUFFIX), buildId)));
+            if (markerCount!=markers.size() || lineCount!=lines.size()) {
+                throw new IOException("Genotype store sidecars don't match "+stem+MATRIX_SUFFIX);
+            }
+            markerIndex = PackedGenotypeMatrix.index(markers);
+            lineIndex = PackedGenotypeMatrix.index(lines);
+            wordsPerRow = getWordsPerRow(lines.size());
+            List<String> escapeLines = ExpressionStore.readSidecar(new File(dir, stem+ESCAPES_SUFFIX), buildId);
+            escapePositions = new long[escapeLines.size()];
+            escapeCalls = new int[escapeLines.size()];
+            List<String> table = new ArrayList<>();
+            Map<String,Integer> tableIndex = new HashMap<>();
+            for (int k=0; k<escapePositions.length; k++) {
+                String[] fields = escapeLines.get(k).split("\t", 3);
+                escapePositions[k] = (long) Integer.parseInt(fields[0])*lines.size()+Integer.parseInt(fields[1]);
+                // the builder writes escapes in marker then line order, so the positions can be binary searched
+                if (k>0 && escapePositions[k]<=escapePositions[k-1]) {
+                    throw new IOException("Genotype store escapes are out of order: "+stem+ESCAPES_SUFFIX);
+                }
+                Integer call = tableIndex.get(fields[2]);
+                if (call==null) {
+                    call = table.size();
+                    table.add(fields[2]);
+                    tableIndex.put(fields[2], call);
+                }
+                escapeCalls[k] = call;
+            }
+            escapeTable = table.toArray(new String[table.size()]);
+        }
+
+        public List<String> getMarkers() {
+            return markers;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * @param marker the marker primaryIdentifier
+         * @return the row index, or -1 if the marker isn't in the matrix
+         */
+        public int getMarkerIndex(String marker) {
+            Integer i = markerIndex.get(marker);
+            return (i==null) ? -1 : i;
+        }
+
+        /**
+         * @param line the line primaryIdentifier
+         * @return the column index, or -1 if the line isn't in the matrix
+         */
+        public int getLineIndex(String line) {
+            Integer j = lineIndex.get(line);
+            return (j==null) ? -1 : j;
+        }
+
+        /**
+         * @return the 2-bit code of a call
+         */
+        int getCode(int i, int j) {
+            long word = words.get(i*wordsPerRow + j/PackedGenotypeMatrix.CALLS_PER_WORD);
+            return (int) ((word>>>((j%PackedGenotypeMatrix.CALLS_PER_WORD)*2)) & 3L);
+        }
+
+        /**
+         * @return true if the matrix has any non-standard calls
+         */
+        boolean hasEscapes() {
+            return escapePositions.length>0;
+        }
+
+        /**
+         * @return the non-standard call at row i and column j, or null if there isn't one
+         */
+        String getEscape(int i, int j) {
+            if (escapePositions.length==0) return null;
+            int k = Arrays.binarySearch(escapePositions, (long) i*lines.size()+j);
+            return (k<0) ? null : escapeTable[escapeCalls[k]];
+        }
+
+        /**
+         * @param i the marker row index
+         * @param j the line column index
+         * @return the call, or null if missing
+         */
+        public String getValue(int i, int j) {
+            int code = getCode(i, j);
+            if (code!=PackedGenotypeMatrix.MISSING) return String.valueOf(PackedGenotypeMatrix.CALLS[code]);
+            return getEscape(i, j);
+        }
+
+        /**
+         * Copy a subset of markers and lines into a PackedGenotypeMatrix, in the given orders. Markers or lines that
+         * aren't in the store are all missing in the slice.
+         *
+         * @param markerSubset the marker primaryIdentifiers, or null for all markers
+         * @param lineSubset the line primaryIdentifiers, or null for all lines
+         * @return the slice
+         */
+        public PackedGenotypeMatrix slice(Collection<String> markerSubset, Collection<String> lineSubset) {
+            List<String> sliceMarkers = (markerSubset==null) ? markers : new ArrayList<>(markerSubset);
+            List<String> sliceLines = (lineSubset==null) ? lines : new ArrayList<>(lineSubset);
+            int[] columns = new int[sliceLines.size()];
+            for (int j=0; j<columns.length; j++) {
+                columns[j] = getLineIndex(sliceLines.get(j));
+            }
+            PackedGenotypeMatrix slice = new PackedGenotypeMatrix(sliceMarkers, sliceLines);
+            for (int si=0; si<sliceMarkers.size(); si++) {
+                int i = getMarkerIndex(sliceMarkers.get(si));
+                if (i<0) continue;
+                for (int sj=0; sj<columns.length; sj++) {
+                    int j = columns[sj];
+                    if (j<0) continue;
+                    int code = getCode(i, j);
+                    if (code!=PackedGenotypeMatrix.MISSING) {
+                        slice.setCode(slice.position(si, sj), code);
+                    } else if (hasEscapes()) {
+                        String value = getEscape(i, j);
+                        if (value!=null) slice.set(si, sj, value);
+                    }
+                }
+            }
+            return slice;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+/**
+ * Exports the genotype calls of MappingPopulations and GenotypingStudies into the memory-mapped files read by
+ * GenotypeStore. Like ExpressionStoreBuilder this is meant to be run once per mine release; calls are streamed one
+ * marker row at a time, and files are written alongside and moved into place when complete.
+ *
+ * A population's columns are its lines; a study's are the lines that have calls in it. Rows are the markers with
+ * calls, in primaryIdentifier order.
+ *
+ * @author Sam Hokin
+ */
+public class GenotypeStoreBuilder {
+
+    protected static final Logger LOG = Logger.getLogger(GenotypeStoreBuilder.class);
+
+    /**
+     * Export every MappingPopulation or every GenotypingStudy into the store directory.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param kind population or study
+     * @param dir the store directory
+     * @return the primaryIdentifiers that were exported
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if a file can't be written
+     */
+    public static List<String> buildAll(PathQueryExecutor executor, Model model, GenotypeStore.Kind kind, File dir)
+        throws ObjectStoreException, IOException {
+        List<String> identifiers = getIdentifiers(executor, model, kind);
+        for (String identifier : identifiers) {
+            build(executor, model, kind, identifier, dir);
+        }
+        return identifiers;
+    }
+
+    /**
+     * Query every MappingPopulation or every GenotypingStudy, in primaryIdentifier order.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param kind population or study
+     * @return the primaryIdentifiers
+     * @throws ObjectStoreException if the query fails
+     */
+    public static List<String> getIdentifiers(PathQueryExecutor executor, Model model, GenotypeStore.Kind kind) throws ObjectStoreException {
+        String className = (kind==GenotypeStore.Kind.POPULATION) ? "MappingPopulation" : "GenotypingStudy";
+        List<String> identifiers = new ArrayList<>();
+        PathQuery query = new PathQuery(model);
+        query.addView(className+".primaryIdentifier"); // 0
+        query.addOrderBy(className+".primaryIdentifier", OrderDirection.ASC);
+        ExportResultsIterator result = executor.execute(query);
+        while (result.hasNext()) {
+            List<ResultElement> row = result.next();
+            identifiers.add((String) row.get(0).getField());
+        }
+        return identifiers;
+    }
+
+    /**
+     * Export a single MappingPopulation or GenotypingStudy into the store directory.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @param dir the store directory
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if a file can't be written
+     */
+    public static void build(PathQueryExecutor executor, Model model, GenotypeStore.Kind kind, String primaryIdentifier, File dir)
+        throws ObjectStoreException, IOException {
+        long start = System.currentTimeMillis();
+        String stem = GenotypeStore.getFileStem(kind, primaryIdentifier);
+        File matrixFile = new File(dir, stem+GenotypeStore.MATRIX_SUFFIX);
+        File markersFile = new File(dir, stem+GenotypeStore.MARKERS_SUFFIX);
+        File linesFile = new File(dir, stem+GenotypeStore.LINES_SUFFIX);
+        File escapesFile = new File(dir, stem+GenotypeStore.ESCAPES_SUFFIX);
+        File matrixTmp = new File(dir, matrixFile.getName()+".tmp");
+        File markersTmp = new File(dir, markersFile.getName()+".tmp");
+        File linesTmp = new File(dir, linesFile.getName()+".tmp");
+        File escapesTmp = new File(dir, escapesFile.getName()+".tmp");
+
+        // lines, the columns; a study's lines come off its GenotypeValues, one row per call, so they're de-duplicated
+        Set<String> lineSet = new LinkedHashSet<>();
+        ExportResultsIterator linesResult = executor.execute(getLinesQuery(model, kind, primaryIdentifier));
+        while (linesResult.hasNext()) {
+            List<ResultElement> row = linesResult.next();
+            lineSet.add((String) row.get(0).getField()); // 0 line.primaryIdentifier
+        }
+        List<String> lines = new ArrayList<>(lineSet);
+        Map<String,Integer> lineIndex = new HashMap<>();
+        for (int j=0; j<lines.size(); j++) {
+            lineIndex.put(lines.get(j), j);
+        }
+        // every file of this build carries the same id, so a reader never pairs files from two builds
+        long buildId = ExpressionStore.newBuildId();
+        try (Writer linesWriter = ExpressionStoreBuilder.newWriter(linesTmp)) {
+            ExpressionStore.writeBuildLine(linesWriter, buildId);
+            for (String line : lines) {
+                linesWriter.write(line);
+                linesWriter.write('\n');
+            }
+        }
+
+        // calls, one marker row at a time
+        int wordsPerRow = GenotypeStore.getWordsPerRow(lines.size());
+        long[] rowWords = new long[wordsPerRow];
+        ByteBuffer row = ByteBuffer.allocate(8*wordsPerRow).order(ByteOrder.LITTLE_ENDIAN);
+        int markers = 0;
+        int escapes = 0;
+        try (RandomAccessFile file = new RandomAccessFile(matrixTmp, "rw");
+             FileChannel channel = file.getChannel();
+             Writer markersWriter = ExpressionStoreBuilder.newWriter(markersTmp);
+             Writer escapesWriter = ExpressionStoreBuilder.newWriter(escapesTmp)) {
+            ExpressionStore.writeBuildLine(markersWriter, buildId);
+            ExpressionStore.writeBuildLine(escapesWriter, buildId);
+            channel.truncate(0);
+            channel.position(GenotypeStore.HEADER_BYTES);
+            ExportResultsIterator valuesResult = executor.execute(getValuesQuery(model, kind, primaryIdentifier));
+            String currentMarker = null;
+            while (valuesResult.hasNext()) {
+                List<ResultElement> valueRow = valuesResult.next();
+                String marker = (String) valueRow.get(0).getField(); // 0 GenotypeValue.marker.primaryIdentifier
+                String line = (String) valueRow.get(1).getField();   // 1 GenotypeValue.line.primaryIdentifier
+                String value = (String) valueRow.get(2).getField();  // 2 GenotypeValue.value
+                if (!Objects.equals(marker, currentMarker)) {
+                    if (currentMarker!=null) {
+                        writeRow(channel, row, rowWords);
+                    }
+                    currentMarker = marker;
+                    markers++;
+                    markersWriter.write(marker);
+                    markersWriter.write('\n');
+                    for (int w=0; w<wordsPerRow; w++) rowWords[w] = 0L;
+                }
+                Integer j = lineIndex.get(line);
+                if (j==null) continue;
+                int code = PackedGenotypeMatrix.encode(value);
+                if (code<0) {
+                    escapesWriter.write((markers-1)+"\t"+j+"\t"+value.replace('\n', ' ')+"\n");
+                    escapes++;
+                } else {
+                    int shift = (j%PackedGenotypeMatrix.CALLS_PER_WORD)*2;
+                    int w = j/PackedGenotypeMatrix.CALLS_PER_WORD;
+                    rowWords[w] = (rowWords[w] & ~(3L<<shift)) | ((long) code<<shift);
+                }
+            }
+            if (currentMarker!=null) {
+                writeRow(channel, row, rowWords);
+            }
+            // now that we know the marker count, write the header
+            ByteBuffer header = ByteBuffer.allocate(GenotypeStore.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(GenotypeStore.MAGIC);
+            header.putInt(GenotypeStore.VERSION);
+            header.putInt(markers);
+            header.putInt(lines.size());
+            header.putLong(buildId);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+
+        // move into place, sidecars first so a reader never sees a matrix without them; a reader that maps between
+        // the moves finds mismatched build ids and falls back to the query until the last move is done
+        Files.move(linesTmp.toPath(), linesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(markersTmp.toPath(), markersFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(escapesTmp.toPath(), escapesFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(matrixTmp.toPath(), matrixFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        GenotypeStore store = GenotypeStore.getInstance(dir.getPath());
+        if (store!=null) store.release(kind, primaryIdentifier);
+        LOG.info("Exported genotypes of "+stem+": "+markers+" markers x "+lines.size()+" lines, "+escapes+" escaped calls, in "+
+                 (System.currentTimeMillis()-start)+" ms.");
+    }
+
+    /**
+     * Write a marker's packed row to the channel.
+     */
+    static void writeRow(FileChannel channel, ByteBuffer row, long[] rowWords) throws IOException {
+        row.clear();
+        row.asLongBuffer().put(rowWords);
+        ExpressionStoreBuilder.writeRow(channel, row);
+    }
+
+    /**
+     * Create a path query to retrieve the lines of a population, or the lines with calls in a study, in column order.
+     * The study query returns a line once per call, so callers must de-duplicate.
+     *
+     * @param model the model
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getLinesQuery(Model model, GenotypeStore.Kind kind, String primaryIdentifier) {
+        PathQuery query = new PathQuery(model);
+        if (kind==GenotypeStore.Kind.POPULATION) {
+            query.addView("MappingPopulation.lines.primaryIdentifier"); // 0
+            query.addConstraint(Constraints.eq("MappingPopulation.primaryIdentifier", primaryIdentifier));
+            query.addOrderBy("MappingPopulation.lines.primaryIdentifier", OrderDirection.ASC);
+        } else {
+            query.addView("GenotypeValue.line.primaryIdentifier"); // 0
+            query.addConstraint(Constraints.eq("GenotypeValue.marker.genotypingStudies.primaryIdentifier", primaryIdentifier));
+            query.addOrderBy("GenotypeValue.line.primaryIdentifier", OrderDirection.ASC);
+        }
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Lines query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve all the calls of a population or study, marker by marker.
+     *
+     * @param model the model
+     * @param kind population or study
+     * @param primaryIdentifier the MappingPopulation or GenotypingStudy primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getValuesQuery(Model model, GenotypeStore.Kind kind, String primaryIdentifier) {
+        PathQuery query = new PathQuery(model);
+        query.addView("GenotypeValue.marker.primaryIdentifier"); // 0
+        query.addView("GenotypeValue.line.primaryIdentifier");   // 1
+        query.addView("GenotypeValue.value");                    // 2
+        if (kind==GenotypeStore.Kind.POPULATION) {
+            query.addConstraint(Constraints.eq("GenotypeValue.line.mappingPopulation.primaryIdentifier", primaryIdentifier));
+        } else {
+            query.addConstraint(Constraints.eq("GenotypeValue.marker.genotypingStudies.primaryIdentifier", primaryIdentifier));
+        }
+        query.addOrderBy("GenotypeValue.marker.primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy("GenotypeValue.line.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Values query invalid: "+verifyList);
+        return query;
+    }
+}
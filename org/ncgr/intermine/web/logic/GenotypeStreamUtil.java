@@ -0,0 +1,227 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+import org.json.JSONWriter;
+
+/**
+ * Static methods that stream the genotypes of a bag of markers as newline-delimited JSON, one population at a time,
+ * so a client can start drawing the first population while the rest are still being read. Only the current marker's
+ * row is held, so memory doesn't grow with the population.
+ *
+ * Each line is a JSON object with a "type":
+ *   populations - {"type":"populations","populations":[...]}, the mapping populations that follow, in order
+ *   population  - {"type":"population","population":mp,"markers":[...],"lines":[...],"missing":"-"}, a population's
+ *                 rows and columns
+ *   row         - {"type":"row","population":mp,"i":i,"calls":"AB-H..."}, marker i's calls, one char per line, in
+ *                 line order; markers without any calls have no row
+ *   error       - {"type":"error","population":mp,"message":...}, a population that couldn't be read
+ *   end         - {"type":"end","populations":n,"rows":n}
+ *
+ * Rows come from the GenotypeStore when the population has been exported to it, and straight off the GenotypeValue
+ * query iterator otherwise. The writer is flushed after each population header and every FLUSH_ROWS rows.
+ *
+ * @author Sam Hokin
+ */
+public class GenotypeStreamUtil {
+
+    public static final char MISSING = '-';
+    static final int FLUSH_ROWS = 256;
+
+    /**
+     * Stream the genotypes of every mapping population of a bag of markers.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param store the GenotypeStore, or null
+     * @param bagIds the IDs of the bag of markers
+     * @param out the Writer
+     * @return the number of rows written
+     * @throws ObjectStoreException if the populations query fails
+     * @throws IOException if the Writer fails
+     */
+    public static int writeNDJSON(PathQueryExecutor executor, Model model, GenotypeStore store, BagIds bagIds, Writer out)
+        throws ObjectStoreException, IOException {
+        List<String> mappingPopulations = getMappingPopulations(executor, model, bagIds);
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("type").value("populations");
+        writer.key("populations");
+        writeArray(writer, mappingPopulations);
+        writer.endObject();
+        out.write('\n');
+        int rows = 0;
+        for (String mp : mappingPopulations) {
+            try {
+                rows += writePopulation(executor, model, store, bagIds, mp, out);
+            } catch (ObjectStoreException e) {
+                // rows already written stay written; tell the client this population stopped short
+                writer = new JSONWriter(out);
+                writer.object();
+                writer.key("type").value("error");
+                writer.key("population").value(mp);
+                writer.key("message").value(e.getMessage());
+                writer.endObject();
+                out.write('\n');
+            }
+        }
+        writer = new JSONWriter(out);
+        writer.object();
+        writer.key("type").value("end");
+        writer.key("populations").value(mappingPopulations.size());
+        writer.key("rows").value(rows);
+        writer.endObject();
+        out.write('\n');
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * Stream a single population's header and rows.
+     *
+     * @return the number of rows written
+     */
+    static int writePopulation(PathQueryExecutor executor, Model model, GenotypeStore store, BagIds bagIds, String mappingPopulation, Writer out)
+        throws ObjectStoreException, IOException {
+        List<String> markers = readColumn(executor.execute(PopulationGenotypes.getMarkersQuery(model, bagIds, mappingPopulation)));
+        List<String> lines = readColumn(executor.execute(PopulationGenotypes.getLinesQuery(model, mappingPopulation)));
+        Map<String,Integer> markerIndex = PackedGenotypeMatrix.index(markers);
+        Map<String,Integer> lineIndex = PackedGenotypeMatrix.index(lines);
+
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("type").value("population");
+        writer.key("population").value(mappingPopulation);
+        writer.key("markers");
+        writeArray(writer, markers);
+        writer.key("lines");
+        writeArray(writer, lines);
+        writer.key("missing").value(String.valueOf(MISSING));
+        writer.endObject();
+        out.write('\n');
+        out.flush();
+
+        int rows = 0;
+        GenotypeStore.Matrix stored = (store==null) ? null : store.getMatrix(GenotypeStore.Kind.POPULATION, mappingPopulation);
+        char[] calls = new char[lines.size()];
+        if (stored!=null) {
+            // resolve the line columns once, then decode each stored row straight into calls
+            int[] columns = new int[lines.size()];
+            for (int j=0; j<columns.length; j++) {
+                columns[j] = stored.getLineIndex(lines.get(j));
+            }
+            for (int i=0; i<markers.size(); i++) {
+                int si = stored.getMarkerIndex(markers.get(i));
+                if (si<0) continue;
+                for (int j=0; j<columns.length; j++) {
+                    calls[j] = MISSING;
+                    if (columns[j]<0) continue;
+                    int code = stored.getCode(si, columns[j]);
+                    if (code!=PackedGenotypeMatrix.MISSING) {
+                        calls[j] = PackedGenotypeMatrix.CALLS[code];
+                    } else if (stored.hasEscapes()) {
+                        String value = stored.getValue(si, columns[j]);
+                        if (value!=null) calls[j] = value.charAt(0);
+                    }
+                }
+                writeRow(out, mappingPopulation, i, new String(calls));
+                if (++rows%FLUSH_ROWS==0) out.flush();
+            }
+        } else {
+            String currentMarker = null;
+            ExportResultsIterator valueResults = executor.execute(PopulationGenotypes.getValuesQuery(model, bagIds, mappingPopulation));
+            while (valueResults.hasNext()) {
+                List<ResultElement> valueRow = valueResults.next();
+                String marker = (String) valueRow.get(0).getField(); // 0 GenotypeValue.marker.primaryIdentifier
+                String line = (String) valueRow.get(1).getField();   // 1 GenotypeValue.line.primaryIdentifier
+                String value = (String) valueRow.get(2).getField();  // 2 GenotypeValue.value
+                if (!Objects.equals(marker, currentMarker)) {
+                    if (currentMarker!=null) {
+                        writeRow(out, mappingPopulation, markerIndex.get(currentMarker), new String(calls));
+                        if (++rows%FLUSH_ROWS==0) out.flush();
+                    }
+                    currentMarker = markerIndex.containsKey(marker) ? marker : null;
+                    Arrays.fill(calls, MISSING);
+                }
+                if (currentMarker==null) continue;
+                Integer j = lineIndex.get(line);
+                if (j!=null && value!=null && value.length()>0) calls[j] = value.charAt(0);
+            }
+            if (currentMarker!=null) {
+                writeRow(out, mappingPopulation, markerIndex.get(currentMarker), new String(calls));
+                rows++;
+            }
+        }
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * Write a single row line.
+     */
+    static void writeRow(Writer out, String mappingPopulation, int i, String calls) throws IOException {
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("type").value("row");
+        writer.key("population").value(mappingPopulation);
+        writer.key("i").value(i);
+        writer.key("calls").value(calls);
+        writer.endObject();
+        out.write('\n');
+    }
+
+    /**
+     * Query the mapping populations of a bag of markers, in primaryIdentifier order.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bagIds the IDs of the bag of markers
+     * @return the MappingPopulation primaryIdentifiers
+     * @throws ObjectStoreException if the query fails
+     */
+    public static List<String> getMappingPopulations(PathQueryExecutor executor, Model model, BagIds bagIds) throws ObjectStoreException {
+        PathQuery query = new PathQuery(model);
+        query.addView("GeneticMarker.mappingPopulations.primaryIdentifier"); // 0
+        query.addConstraint(bagIds.in("GeneticMarker"));
+        query.addOrderBy("GeneticMarker.mappingPopulations.primaryIdentifier", OrderDirection.ASC);
+        return new ArrayList<>(new LinkedHashSet<>(readColumn(executor.execute(query))));
+    }
+
+    /**
+     * Write a list of strings as a JSON array.
+     */
+    static void writeArray(JSONWriter writer, List<String> values) {
+        writer.array();
+        for (String value : values) {
+            writer.value(value);
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Read the first column of a query's results.
+     */
+    static List<String> readColumn(ExportResultsIterator results) {
+        List<String> column = new ArrayList<>();
+        while (results.hasNext()) {
+            List<ResultElement> row = results.next();
+            column.add((String) row.get(0).getField());
+        }
+        return column;
+    }
+}
@@ -0,0 +1,191 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide, bounded cache of finished heat map payloads, keyed by bag contents and expression source, so that
+ * reopening the same list analysis page doesn't redo every query. Entries are evicted least-recently-used first
+ * once the total payload size exceeds the byte limit. Hit, miss and eviction counts are kept for monitoring.
+ *
+ * Keys are built with getKey() from BagIds.getContentsKey() and the source's ExpressionStore build, so a changed bag or
+ * a rebuilt source simply misses.
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L*1024L*1024L;
+
+    private static final HeatMapCache INSTANCE = new HeatMapCache(DEFAULT_MAX_BYTES);
+
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Construct with a byte limit; use getInstance() for the shared cache.
+     *
+     * @param maxBytes the maximum total payload size
+     */
+    HeatMapCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the shared cache
+     */
+    public static HeatMapCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Form a cache key.
+     *
+     * @param bagContentsKey the key from BagIds.getContentsKey()
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param store the ExpressionStore the payload may be read from, or null
+     * @param variant distinguishes different payloads for the same bag and source, e.g. clustered or not
+     * @return the key
+     */
+    public static String getKey(String bagContentsKey, String source, ExpressionStore store, String variant) {
+        String build = (store==null) ? null : store.getBuildKey(source);
+        return bagContentsKey+":"+source+"@"+((build==null) ? "query" : build)+":"+variant;
+    }
+
+    /**
+     * Get a cached payload, counting the hit or miss.
+     *
+     * @param key the key
+     * @param type the payload class
+     * @return the payload, or null if it isn't cached
+     */
+    public synchronized <T> T get(String key, Class<T> type) {
+        Entry entry = entries.get(key);
+        if (entry==null || !type.isInstance(entry.value)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return type.cast(entry.value);
+    }
+
+    /**
+     * Cache a payload, evicting the least recently used payloads if the byte limit is exceeded.
+     * Payloads larger than the limit are not cached, and replace any payload already cached under the key.
+     *
+     * @param key the key
+     * @param value the payload
+     * @param size the approximate size of the payload in bytes
+     */
+    public synchronized void put(String key, Object value, long size) {
+        if (size>maxBytes) {
+            remove(key);
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(value, size));
+        if (previous!=null) bytes -= previous.size;
+        bytes += size;
+        evict();
+    }
+
+    /**
+     * Drop a cached payload, if there is one.
+     *
+     * @param key the key
+     */
+    public synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous!=null) bytes -= previous.size;
+    }
+
+    /**
+     * Set the byte limit, evicting payloads if it has been lowered.
+     *
+     * @param maxBytes the maximum total payload size
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Empty the cache; the counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the counters and sizes as a map, e.g. for JSON output
+     */
+    public synchronized Map<String,Object> getStats() {
+        Map<String,Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "HeatMapCache"+getStats();
+    }
+
+    /**
+     * Evict least recently used entries until we're within the byte limit.
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes>maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * A cached payload and its size.
+     */
+    private static class Entry {
+        final Object value;
+        final long size;
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
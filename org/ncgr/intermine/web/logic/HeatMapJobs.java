@@ -0,0 +1,232 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import org.intermine.api.InterMineAPI;
+import org.intermine.api.profile.Profile;
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.metadata.Model;
+
+import org.ncgr.intermine.web.logic.HeatMapUtil.PayloadInputs;
+import org.ncgr.intermine.web.logic.HeatMapUtil.SourcePayload;
+
+/**
+ * Computes heat map payloads off the request thread. A job has one task per source, run on a small bounded thread
+ * pool, and collects the finished payloads in the order they complete so that a page can poll for them and show
+ * each source as soon as it's ready. Finished payloads also go into HeatMapCache. Jobs are forgotten a while after
+ * they finish.
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapJobs {
+
+    protected static final Logger LOG = Logger.getLogger(HeatMapJobs.class);
+
+    public static final int DEFAULT_THREADS = 2;
+    static final int QUEUE_SIZE = 64;
+    static final long JOB_TTL_MILLIS = 10L*60L*1000L;
+
+    private static HeatMapJobs instance;
+
+    private final ThreadPoolExecutor pool;
+    private final Map<String,Job> jobs = new ConcurrentHashMap<>();
+
+    HeatMapJobs(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                      new ThreadFactory() {
+                                          @Override
+                                          public Thread newThread(Runnable r) {
+                                              Thread thread = new Thread(r, "heatmap-"+threadCount.incrementAndGet());
+                                              thread.setDaemon(true);
+                                              return thread;
+                                          }
+                                      });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the shared job runner, creating it with the given number of threads on first use.
+     *
+     * @param threads the number of background threads, e.g. from heatmap.async.threads
+     * @return the job runner
+     */
+    public static synchronized HeatMapJobs getInstance(int threads) {
+        if (instance==null) {
+            instance = new HeatMapJobs(Math.max(threads, 1));
+        }
+        return instance;
+    }
+
+    /**
+     * Start computing the payloads of the given sources for the bag. The tasks get their own PathQueryExecutor for the
+     * profile, since they outlive the request.
+     *
+     * @param im the InterMineAPI
+     * @param profile the user's profile
+     * @param bag the IDs of the bag o'genes
+     * @param bagKey the bag contents key, for HeatMapCache
+     * @param sources the primaryIdentifiers of the sources to compute
+     * @param options the heat map options
+     * @return the job, which is already running
+     */
+    public Job submit(final InterMineAPI im, final Profile profile, final BagIds bag, final String bagKey,
+                      List<String> sources, final HeatMapOptions options) {
+        expire();
+        final Job job = new Job(UUID.randomUUID().toString(), sources);
+        jobs.put(job.id, job);
+        for (final String source : job.sources) {
+            try {
+                pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            job.run(im.getPathQueryExecutor(profile), im.getModel(), bag, bagKey, source, options);
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                job.fail(source, "server busy");
+            }
+        }
+        return job;
+    }
+
+    /**
+     * @param id the job id
+     * @return the job, or null if it's unknown or has expired
+     */
+    public Job getJob(String id) {
+        return (id==null) ? null : jobs.get(id);
+    }
+
+    /**
+     * Forget jobs that finished more than JOB_TTL_MILLIS ago.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+            Job job = it.next();
+            if (job.isDone() && now-job.finishTime>JOB_TTL_MILLIS) it.remove();
+        }
+    }
+
+    /**
+     * A heat map computation for one bag over several sources.
+     */
+    public static class Job {
+        final String id;
+        final List<String> sources;
+        final List<SourcePayload> finished = Collections.synchronizedList(new ArrayList<SourcePayload>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger remaining;
+        final long startTime = System.currentTimeMillis();
+        volatile long finishTime = 0;
+        // the samples and bag genes shared by all the sources, resolved by the first task to run
+        private PayloadInputs inputs;
+        private Exception inputsError;
+
+        Job(String id, List<String> sources) {
+            this.id = id;
+            this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+            this.remaining = new AtomicInteger(this.sources.size());
+        }
+
+        /**
+         * Compute a single source and record the result.
+         */
+        void run(PathQueryExecutor executor, Model model, BagIds bag, String bagKey, String source, HeatMapOptions options) {
+            try {
+                Map<String,SourcePayload> payloads = HeatMapUtil.getPayloads(executor, model, bag, Collections.singletonList(source),
+                                                                             getInputs(executor, model, bag, options), options);
+                for (SourcePayload payload : payloads.values()) {
+                    HeatMapCache.getInstance().put(HeatMapCache.getKey(bagKey, payload.source, options.getExpressionStore(), options.getVariant()), payload, payload.getBytes());
+                    finished.add(payload);
+                }
+            } catch (Exception e) {
+                LOG.error("Error computing heat map for source "+source+": "+e.toString());
+                errors.add(source+": "+e.toString());
+            } finally {
+                sourceDone();
+            }
+        }
+
+        /**
+         * Resolve the inputs of all the job's sources on first call; later calls, and a failure, are shared.
+         */
+        synchronized PayloadInputs getInputs(PathQueryExecutor executor, Model model, BagIds bag, HeatMapOptions options) throws Exception {
+            if (inputs==null && inputsError==null) {
+                try {
+                    inputs = HeatMapUtil.getPayloadInputs(executor, model, bag, sources, options);
+                } catch (Exception e) {
+                    inputsError = e;
+                }
+            }
+            if (inputsError!=null) throw inputsError;
+            return inputs;
+        }
+
+        void fail(String source, String message) {
+            errors.add(source+": "+message);
+            sourceDone();
+        }
+
+        void sourceDone() {
+            if (remaining.decrementAndGet()==0) {
+                finishTime = System.currentTimeMillis();
+                LOG.info("Heat map job "+id+" finished "+sources.size()+" sources in "+(finishTime-startTime)+" ms.");
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public List<String> getSources() {
+            return sources;
+        }
+
+        /**
+         * @return true if every source has finished or failed
+         */
+        public boolean isDone() {
+            return remaining.get()==0;
+        }
+
+        /**
+         * @return the number of payloads finished so far
+         */
+        public int getFinishedCount() {
+            return finished.size();
+        }
+
+        /**
+         * @param since the number of payloads the caller already has
+         * @return the payloads finished after the first since, in completion order
+         */
+        public List<SourcePayload> getFinished(int since) {
+            synchronized (finished) {
+                if (since>=finished.size()) return Collections.emptyList();
+                return new ArrayList<>(finished.subList(Math.max(since, 0), finished.size()));
+            }
+        }
+
+        public List<String> getErrors() {
+            synchronized (errors) {
+                return new ArrayList<>(errors);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.Properties;
+
+/**
+ * Options for building heat map payloads, read from web.properties:
+ *
+ *   heatmap.cluster=true|false        cluster genes and samples on the server (default false)
+ *   heatmap.cluster.maxGenes=N        don't cluster sources with more than N genes (default 5000)
+ *   heatmap.cache.maxBytes=N          byte limit of the shared HeatMapCache
+ *   heatmap.topGenes=K                keep only the K most variable genes of each source (default 0, keep all)
+ *   heatmap.topGenes.score=variance|cv  rank genes by variance or coefficient of variation (default variance)
+ *   heatmap.async=true|false          compute uncached sources in the background for the page to poll (default false)
+ *   heatmap.async.threads=N           background threads shared by all heat map jobs (default 2)
+ *   heatmap.encoding=json|float32|uint16  how expression values are sent; see ExpressionEncoding (default json)
+ *   heatmap.aggregate=true|false      send one column per replicate group, the mean of its samples (default false)
+ *   expression.store.dir=path         directory of the memory-mapped ExpressionStore, if one has been built
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapOptions {
+
+    boolean cluster = false;
+    int clusterMaxGenes = 5000;
+    long cacheMaxBytes = HeatMapCache.DEFAULT_MAX_BYTES;
+    String expressionStoreDir = null;
+    String releaseVersion = null;
+    boolean async = false;
+    int asyncThreads = HeatMapJobs.DEFAULT_THREADS;
+    ExpressionEncoding.Type encoding = ExpressionEncoding.Type.JSON;
+    boolean aggregate = false;
+    int topGenes = 0;
+    TopVariableGenes.Score topGenesScore = TopVariableGenes.Score.VARIANCE;
+
+    /**
+     * Read the heat map options from web.properties, falling back to the defaults.
+     *
+     * @param webProps the web properties, which may be null
+     * @return the options
+     */
+    public static HeatMapOptions fromWebProperties(Properties webProps) {
+        HeatMapOptions options = new HeatMapOptions();
+        if (webProps!=null) {
+            options.cluster = Boolean.parseBoolean(webProps.getProperty("heatmap.cluster", String.valueOf(options.cluster)));
+            options.clusterMaxGenes = Integer.parseInt(webProps.getProperty("heatmap.cluster.maxGenes", String.valueOf(options.clusterMaxGenes)));
+            options.cacheMaxBytes = Long.parseLong(webProps.getProperty("heatmap.cache.maxBytes", String.valueOf(options.cacheMaxBytes)));
+            options.expressionStoreDir = webProps.getProperty("expression.store.dir");
+            options.releaseVersion = webProps.getProperty("project.releaseVersion");
+            options.async = Boolean.parseBoolean(webProps.getProperty("heatmap.async", String.valueOf(options.async)));
+            options.asyncThreads = Integer.parseInt(webProps.getProperty("heatmap.async.threads", String.valueOf(options.asyncThreads)));
+            options.encoding = ExpressionEncoding.Type.fromString(webProps.getProperty("heatmap.encoding"));
+            options.aggregate = Boolean.parseBoolean(webProps.getProperty("heatmap.aggregate", String.valueOf(options.aggregate)));
+            options.topGenes = Integer.parseInt(webProps.getProperty("heatmap.topGenes", String.valueOf(options.topGenes)));
+            options.topGenesScore = TopVariableGenes.Score.fromString(webProps.getProperty("heatmap.topGenes.score"));
+        }
+        return options;
+    }
+
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    public void setCluster(boolean cluster) {
+        this.cluster = cluster;
+    }
+
+    public int getClusterMaxGenes() {
+        return clusterMaxGenes;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public ExpressionEncoding.Type getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(ExpressionEncoding.Type encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return true if samples are aggregated into their replicate groups
+     */
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @return the number of most variable genes to keep per source, or 0 to keep all genes
+     */
+    public int getTopGenes() {
+        return topGenes;
+    }
+
+    public void setTopGenes(int topGenes) {
+        this.topGenes = Math.max(topGenes, 0);
+    }
+
+    public TopVariableGenes.Score getTopGenesScore() {
+        return topGenesScore;
+    }
+
+    public void setTopGenesScore(TopVariableGenes.Score topGenesScore) {
+        this.topGenesScore = topGenesScore;
+    }
+
+    /**
+     * @return the sample metadata cache for the mine release, project.releaseVersion
+     */
+    public ExpressionSampleCache getSampleCache() {
+        return ExpressionSampleCache.getInstance(releaseVersion);
+    }
+
+    /**
+     * @return the ExpressionStore, or null if there isn't one
+     */
+    public ExpressionStore getExpressionStore() {
+        return ExpressionStore.getInstance(expressionStoreDir);
+    }
+
+    /**
+     * @return a string that distinguishes payloads built with different options, for cache keys
+     */
+    public String getVariant() {
+        String variant = cluster ? "clustered-"+clusterMaxGenes : "plain";
+        if (topGenes>0) variant += "-top"+topGenes+"-"+topGenesScore.name().toLowerCase();
+        if (aggregate) variant += "-aggregated";
+        if (encoding!=ExpressionEncoding.Type.JSON) variant += "-"+encoding.getName();
+        return variant;
+    }
+}
@@ -0,0 +1,855 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import org.ncgr.intermine.web.logic.ExpressionSampleCache.SourceMetadata;
+
+/**
+ * Queries and JSON output for CanvasXpress expression heat maps of a list of genes, shared by HeatMapController
+ * and HeatMapJSONAction.
+ *
+ * @author Sam Hokin
+ */
+public class HeatMapUtil {
+
+    /**
+     * Get the samples of the expression sources with expression for the genes in the bag from the sample metadata
+     * cache; only the sources themselves are queried, and only if they aren't given.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all sources
+     * @param sampleCache the sample metadata cache
+     * @return the samples of each source keyed by ExpressionSource.primaryIdentifier, in source order
+     * @throws ObjectStoreException if a query fails
+     */
+    public static Map<String,SourceSamples> getSourceSamples(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                             ExpressionSampleCache sampleCache) throws ObjectStoreException {
+        if (sources==null) {
+            sources = getSources(executor, model, bag);
+        }
+        Map<String,SourceSamples> sourceSamplesMap = new LinkedHashMap<>();
+        for (SourceMetadata metadata : sampleCache.getAll(executor, model, sources).values()) {
+            SourceSamples sourceSamples = new SourceSamples(metadata.getId(), metadata.getIdentifier(), metadata.getSynopsis(), metadata.getUnit());
+            sourceSamples.sampleNames.addAll(metadata.getSampleNames());
+            sourceSamples.sampleDescriptions.putAll(metadata.getSampleDescriptions());
+            sourceSamples.descriptionsJSON = metadata.getDescriptionsJSON();
+            sourceSamples.replicateGroups = metadata.getReplicateGroups();
+            sourceSamplesMap.put(sourceSamples.source, sourceSamples);
+        }
+        return sourceSamplesMap;
+    }
+
+    /**
+     * Query the expression sources with expression for the genes in the bag.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @return the ExpressionSource.primaryIdentifiers, in order
+     * @throws ObjectStoreException if the query fails
+     */
+    public static List<String> getSources(PathQueryExecutor executor, Model model, BagIds bag) throws ObjectStoreException {
+        List<String> sources = new ArrayList<>();
+        ExportResultsIterator sourcesResult = executor.execute(getSourcesQuery(model, bag));
+        while (sourcesResult.hasNext()) {
+            List<ResultElement> sourceRow = sourcesResult.next();
+            if (sourceRow==null || sourceRow.get(0)==null || sourceRow.get(0).getField()==null) {
+                throw new RuntimeException("Null row or row element retrieving sources.");
+            }
+            sources.add((String) sourceRow.get(0).getField()); // 0 ExpressionValue.sample.source.primaryIdentifier
+        }
+        return sources;
+    }
+
+    /**
+     * Build the finished heat map payloads for the given sources with one samples query and one values query,
+     * splitting the value rows into per-source matrices as they arrive.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all sources
+     * @param options the heat map options
+     * @return the payloads keyed by ExpressionSource.primaryIdentifier, in source order; sources without values are absent
+     * @throws ObjectStoreException if a query fails
+     */
+    public static Map<String,SourcePayload> getPayloads(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                        HeatMapOptions options) throws ObjectStoreException {
+        return getPayloads(executor, model, bag, sources, getPayloadInputs(executor, model, bag, sources, options), options);
+    }
+
+    /**
+     * Build the finished heat map payloads for some of the sources whose inputs have already been resolved, e.g. one
+     * source of a HeatMapJobs job.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all the sources of the inputs
+     * @param inputs the inputs from getPayloadInputs() for these sources or more
+     * @param options the heat map options
+     * @return the payloads keyed by ExpressionSource.primaryIdentifier, in source order; sources without values are absent
+     * @throws ObjectStoreException if a query fails
+     */
+    public static Map<String,SourcePayload> getPayloads(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                        PayloadInputs inputs, HeatMapOptions options) throws ObjectStoreException {
+        Map<String,SourcePayload> payloads = new LinkedHashMap<>();
+        List<String> sourceOrder = new ArrayList<>();
+        for (String source : inputs.sourceSamplesMap.keySet()) {
+            if (sources==null || sources.contains(source)) sourceOrder.add(source);
+        }
+        if (sourceOrder.size()==0) return payloads;
+        // sources in the ExpressionStore are read from the mapped files rather than queried
+        ExpressionStore store = options.getExpressionStore();
+        List<String> storedSources = new ArrayList<>();
+        List<String> queriedSources = new ArrayList<>();
+        for (String source : sourceOrder) {
+            if (store!=null && store.hasSource(source)) {
+                storedSources.add(source);
+            } else {
+                queriedSources.add(source);
+            }
+        }
+        // sources that can't be read from the store after all are put back on queriedSources
+        Map<String,SourcePayload> storedPayloads = getStoredPayloads(executor, model, bag, store, storedSources, queriedSources, inputs, options);
+        if (queriedSources.size()>0) {
+            payloads.putAll(getQueriedPayloads(executor, model, bag, storedSources.size()>0 ? queriedSources : sources, inputs.sourceSamplesMap, options));
+        }
+        if (storedSources.isEmpty()) return payloads;
+        // merge back into source order
+        Map<String,SourcePayload> ordered = new LinkedHashMap<>();
+        for (String source : sourceOrder) {
+            SourcePayload payload = storedPayloads.containsKey(source) ? storedPayloads.get(source) : payloads.get(source);
+            if (payload!=null) ordered.put(source, payload);
+        }
+        return ordered;
+    }
+
+    /**
+     * Resolve the inputs shared by the payloads of the given sources: their samples from the sample metadata cache and,
+     * if any of them are in the ExpressionStore, the genes in the bag.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all sources
+     * @param options the heat map options
+     * @return the inputs
+     * @throws ObjectStoreException if a query fails
+     */
+    public static PayloadInputs getPayloadInputs(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                 HeatMapOptions options) throws ObjectStoreException {
+        Map<String,SourceSamples> sourceSamplesMap = getSourceSamples(executor, model, bag, sources, options.getSampleCache());
+        ExpressionStore store = options.getExpressionStore();
+        List<String[]> bagGenes = null;
+        if (store!=null) {
+            for (String source : sourceSamplesMap.keySet()) {
+                if (store.hasSource(source)) {
+                    bagGenes = getBagGenes(executor, model, bag);
+                    break;
+                }
+            }
+        }
+        return new PayloadInputs(sourceSamplesMap, bagGenes);
+    }
+
+    /**
+     * Build the heat map payloads for the given sources from the values query.
+     */
+    static Map<String,SourcePayload> getQueriedPayloads(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                        Map<String,SourceSamples> sourceSamplesMap, HeatMapOptions options)
+        throws ObjectStoreException {
+        if (options.getTopGenes()>0) {
+            return getTopGenesPayloads(executor, model, bag, sources, sourceSamplesMap, options);
+        }
+        Map<String,SourcePayload> payloads = new LinkedHashMap<>();
+        // rows are ordered by source so each source's matrix is completed as soon as the next source starts
+        ExportResultsIterator valuesResult = executor.execute(getExpressionValuesQuery(model, bag, sources));
+        SourceSamples currentSource = null;
+        ExpressionMatrix matrix = null;
+        Map<String,String> genePrimaryIDMap = null;
+        Map<String,String> geneDescriptionMap = null;
+        while (valuesResult.hasNext()) {
+            List<ResultElement> valueRow = valuesResult.next();
+            String source = (String) valueRow.get(0).getField();          // 0 ExpressionValue.sample.source.primaryIdentifier
+            String genePrimaryID = (String) valueRow.get(1).getField();   // 1 ExpressionValue.feature.primaryIdentifier
+            String geneName = (String) valueRow.get(2).getField();        // 2 ExpressionValue.feature.name
+            String geneDescription = (String) valueRow.get(3).getField(); // 3 ExpressionValue.feature.description
+            String sampleName = (String) valueRow.get(4).getField();      // 4 ExpressionValue.sample.name
+            Double value = (Double) valueRow.get(5).getField();           // 5 ExpressionValue.value
+            if (currentSource==null || !currentSource.source.equals(source)) {
+                // finish off the previous source and move on to this one
+                if (currentSource!=null) {
+                    payloads.put(currentSource.source, buildPayload(currentSource, matrix, genePrimaryIDMap, geneDescriptionMap, options));
+                }
+                currentSource = sourceSamplesMap.get(source);
+                if (currentSource==null) {
+                    throw new RuntimeException("No samples returned for source:"+source);
+                }
+                matrix = new ExpressionMatrix(currentSource.sampleNames);
+                genePrimaryIDMap = new LinkedHashMap<>();
+                geneDescriptionMap = new LinkedHashMap<>();
+            }
+            if (!genePrimaryIDMap.containsKey(geneName)) {
+                genePrimaryIDMap.put(geneName, genePrimaryID);
+                geneDescriptionMap.put(geneName, geneDescription);
+            }
+            matrix.setValue(geneName, sampleName, value);
+        }
+        // last one
+        if (currentSource!=null) {
+            payloads.put(currentSource.source, buildPayload(currentSource, matrix, genePrimaryIDMap, geneDescriptionMap, options));
+        }
+        return payloads;
+    }
+
+    /**
+     * Build the heat map payloads for the given sources from the values query, keeping only the most variable genes
+     * of each source. Rows are scored as each gene completes, so no more than heatmap.topGenes rows are held per source.
+     */
+    static Map<String,SourcePayload> getTopGenesPayloads(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                                         Map<String,SourceSamples> sourceSamplesMap, HeatMapOptions options)
+        throws ObjectStoreException {
+        Map<String,SourcePayload> payloads = new LinkedHashMap<>();
+        ExportResultsIterator valuesResult = executor.execute(getExpressionValuesQuery(model, bag, sources));
+        SourceSamples currentSource = null;
+        TopVariableGenes selector = null;
+        Map<String,Integer> sampleIndex = null;
+        double[] row = null;
+        BitSet present = new BitSet();
+        boolean inGene = false;
+        String currentGene = null;
+        String currentPrimaryID = null;
+        String currentDescription = null;
+        while (valuesResult.hasNext()) {
+            List<ResultElement> valueRow = valuesResult.next();
+            String source = (String) valueRow.get(0).getField();          // 0 ExpressionValue.sample.source.primaryIdentifier
+            String genePrimaryID = (String) valueRow.get(1).getField();   // 1 ExpressionValue.feature.primaryIdentifier
+            String geneName = (String) valueRow.get(2).getField();        // 2 ExpressionValue.feature.name
+            String geneDescription = (String) valueRow.get(3).getField(); // 3 ExpressionValue.feature.description
+            String sampleName = (String) valueRow.get(4).getField();      // 4 ExpressionValue.sample.name
+            Double value = (Double) valueRow.get(5).getField();           // 5 ExpressionValue.value
+            boolean newSource = (currentSource==null || !currentSource.source.equals(source));
+            if (inGene && (newSource || !Objects.equals(currentGene, geneName))) {
+                row = selector.offer(currentGene, currentPrimaryID, currentDescription, row, present);
+                inGene = false;
+            }
+            if (newSource) {
+                if (currentSource!=null) {
+                    payloads.put(currentSource.source, buildSelectedPayload(currentSource, selector, options, false));
+                }
+                currentSource = sourceSamplesMap.get(source);
+                if (currentSource==null) {
+                    throw new RuntimeException("No samples returned for source:"+source);
+                }
+                sampleIndex = currentSource.getSampleIndex();
+                selector = new TopVariableGenes(options.getTopGenes(), options.getTopGenesScore());
+                row = null;
+            }
+            if (!inGene) {
+                inGene = true;
+                currentGene = geneName;
+                currentPrimaryID = genePrimaryID;
+                currentDescription = geneDescription;
+                if (row==null) {
+                    row = new double[currentSource.sampleNames.size()];
+                } else {
+                    Arrays.fill(row, 0.0);
+                }
+                present.clear();
+            }
+            Integer j = sampleIndex.get(sampleName);
+            if (j!=null) {
+                row[j] = value;
+                present.set(j);
+            }
+        }
+        // last one
+        if (inGene) {
+            selector.offer(currentGene, currentPrimaryID, currentDescription, row, present);
+        }
+        if (currentSource!=null) {
+            payloads.put(currentSource.source, buildSelectedPayload(currentSource, selector, options, false));
+        }
+        return payloads;
+    }
+
+    /**
+     * Build the payload of a source from the genes kept by its selector; floatValues is true if the rows were read from
+     * the ExpressionStore.
+     */
+    static SourcePayload buildSelectedPayload(SourceSamples sourceSamples, TopVariableGenes selector, HeatMapOptions options, boolean floatValues) {
+        Map<String,String> genePrimaryIDMap = new LinkedHashMap<>();
+        Map<String,String> geneDescriptionMap = new LinkedHashMap<>();
+        ExpressionMatrix matrix = selector.toMatrix(sourceSamples.sampleNames, genePrimaryIDMap, geneDescriptionMap);
+        matrix.setFloatValues(floatValues);
+        return buildPayload(sourceSamples, matrix, genePrimaryIDMap, geneDescriptionMap, options, selector.getGeneCount());
+    }
+
+    /**
+     * Build the heat map payloads for the given sources from the ExpressionStore, with the genes in the bag from the
+     * inputs.
+     * A source the store can't map, e.g. on an IOException or mid-rebuild, is added to queriedSources instead.
+     */
+    static Map<String,SourcePayload> getStoredPayloads(PathQueryExecutor executor, Model model, BagIds bag, ExpressionStore store,
+                                                       List<String> storedSources, List<String> queriedSources,
+                                                       PayloadInputs inputs, HeatMapOptions options)
+        throws ObjectStoreException {
+        Map<String,SourcePayload> payloads = new LinkedHashMap<>();
+        if (storedSources.size()==0) return payloads;
+        Map<String,SourceSamples> sourceSamplesMap = inputs.sourceSamplesMap;
+        // a source may have been stored since the inputs were resolved
+        List<String[]> genes = (inputs.bagGenes!=null) ? inputs.bagGenes : getBagGenes(executor, model, bag);
+        for (String source : storedSources) {
+            ExpressionStore.Source stored = store.getSource(source);
+            if (stored==null) {
+                queriedSources.add(source);
+                continue;
+            }
+            SourceSamples sourceSamples = sourceSamplesMap.get(source);
+            ExpressionMatrix matrix = new ExpressionMatrix(sourceSamples.sampleNames);
+            matrix.setFloatValues(true);
+            int[] columns = new int[sourceSamples.sampleNames.size()];
+            for (int j=0; j<columns.length; j++) {
+                columns[j] = stored.getSampleIndex(sourceSamples.sampleNames.get(j));
+            }
+            if (options.getTopGenes()>0) {
+                // score the stored rows and keep only the most variable genes
+                TopVariableGenes selector = new TopVariableGenes(options.getTopGenes(), options.getTopGenesScore());
+                double[] values = null;
+                BitSet present = new BitSet(columns.length);
+                for (String[] gene : genes) {
+                    FloatBuffer row = stored.getRow(gene[0]);
+                    if (row==null) continue;
+                    if (values==null) values = new double[columns.length];
+                    // stored cells without a value are NaN
+                    present.clear();
+                    for (int j=0; j<columns.length; j++) {
+                        float value = (columns[j]>=0) ? row.get(columns[j]) : Float.NaN;
+                        if (Float.isNaN(value)) {
+                            values[j] = 0.0;
+                        } else {
+                            values[j] = (double) value;
+                            present.set(j);
+                        }
+                    }
+                    values = selector.offer(gene[1], gene[0], gene[2], values, present);
+                }
+                if (selector.getSelectedCount()>0) {
+                    payloads.put(source, buildSelectedPayload(sourceSamples, selector, options, true));
+                }
+                continue;
+            }
+            Map<String,String> genePrimaryIDMap = new LinkedHashMap<>();
+            Map<String,String> geneDescriptionMap = new LinkedHashMap<>();
+            for (String[] gene : genes) {
+                FloatBuffer row = stored.getRow(gene[0]);
+                if (row==null) continue;
+                if (!genePrimaryIDMap.containsKey(gene[1])) {
+                    genePrimaryIDMap.put(gene[1], gene[0]);
+                    geneDescriptionMap.put(gene[1], gene[2]);
+                }
+                int i = matrix.addGene(gene[1]);
+                setStoredRow(matrix, i, row, columns);
+            }
+            if (matrix.getGeneCount()>0) {
+                payloads.put(source, buildPayload(sourceSamples, matrix, genePrimaryIDMap, geneDescriptionMap, options));
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Set a matrix row from a stored row, leaving the samples that aren't in the store or have no value (NaN) missing.
+     */
+    static void setStoredRow(ExpressionMatrix matrix, int i, FloatBuffer row, int[] columns) {
+        for (int j=0; j<columns.length; j++) {
+            if (columns[j]<0) continue;
+            float value = row.get(columns[j]);
+            if (!Float.isNaN(value)) matrix.set(i, j, (double) value);
+        }
+    }
+
+    /**
+     * Return Gene.primaryIdentifier, name and description of the genes in the bag, in the same order as the values query.
+     */
+    static List<String[]> getBagGenes(PathQueryExecutor executor, Model model, BagIds bag) throws ObjectStoreException {
+        List<String[]> genes = new ArrayList<>();
+        ExportResultsIterator genesResult = executor.execute(getGenesQuery(model, bag));
+        while (genesResult.hasNext()) {
+            List<ResultElement> geneRow = genesResult.next();
+            genes.add(new String[] {
+                    (String) geneRow.get(0).getField(), // 0 Gene.primaryIdentifier
+                    (String) geneRow.get(1).getField(), // 1 Gene.name
+                    (String) geneRow.get(2).getField()  // 2 Gene.description
+                });
+        }
+        return genes;
+    }
+
+    /**
+     * Return the full genes x samples matrix of a single source for the genes in the bag, read from the ExpressionStore
+     * if the source is in it and queried otherwise. If heatmap.aggregate is on, the columns are the replicate group
+     * means, and if clustering is on, the matrix is returned in clustered order.
+     * heatmap.topGenes is ignored, since the matrix is meant to be served in tiles.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param source the ExpressionSource.primaryIdentifier
+     * @param options the heat map options
+     * @return the matrix, or null if the source has no values for the genes in the bag
+     * @throws ObjectStoreException if a query fails
+     */
+    public static ExpressionMatrix getMatrix(PathQueryExecutor executor, Model model, BagIds bag, String source,
+                                             HeatMapOptions options) throws ObjectStoreException {
+        SourceSamples sourceSamples = getSourceSamples(executor, model, bag, Collections.singletonList(source), options.getSampleCache()).get(source);
+        if (sourceSamples==null) return null;
+        ExpressionMatrix matrix = new ExpressionMatrix(sourceSamples.sampleNames);
+        ExpressionStore store = options.getExpressionStore();
+        ExpressionStore.Source stored = (store==null || !store.hasSource(source)) ? null : store.getSource(source);
+        if (stored!=null) {
+            matrix.setFloatValues(true);
+            int[] columns = new int[sourceSamples.sampleNames.size()];
+            for (int j=0; j<columns.length; j++) {
+                columns[j] = stored.getSampleIndex(sourceSamples.sampleNames.get(j));
+            }
+            for (String[] gene : getBagGenes(executor, model, bag)) {
+                FloatBuffer row = stored.getRow(gene[0]);
+                if (row==null) continue;
+                int i = matrix.addGene(gene[1]);
+                setStoredRow(matrix, i, row, columns);
+            }
+        } else {
+            ExportResultsIterator valuesResult = executor.execute(getExpressionValuesQuery(model, bag, Collections.singletonList(source)));
+            while (valuesResult.hasNext()) {
+                List<ResultElement> valueRow = valuesResult.next();
+                String geneName = (String) valueRow.get(2).getField(); // 2 ExpressionValue.feature.name
+                String sampleName = (String) valueRow.get(4).getField(); // 4 ExpressionValue.sample.name
+                Double value = (Double) valueRow.get(5).getField();    // 5 ExpressionValue.value
+                matrix.setValue(geneName, sampleName, value);
+            }
+        }
+        if (matrix.getGeneCount()==0) return null;
+        if (options.isAggregate() && sourceSamples.replicateGroups!=null) {
+            matrix = sourceSamples.replicateGroups.aggregate(matrix);
+        }
+        if (options.isCluster() && matrix.getGeneCount()>1 && matrix.getGeneCount()<=options.getClusterMaxGenes()) {
+            matrix = HierarchicalClusterer.cluster(matrix).getMatrix();
+        }
+        return matrix;
+    }
+
+    /**
+     * Build the finished heat map payload for a single source from its samples and expression matrix.
+     *
+     * @param sourceSamples the source and its samples
+     * @param matrix the genes x samples expression matrix for this source
+     * @param genePrimaryIDMap Gene.name to Gene.primaryIdentifier for the genes in the matrix
+     * @param geneDescriptionMap Gene.name to Gene.description for the genes in the matrix
+     * @param options the heat map options
+     * @return the payload
+     */
+    public static SourcePayload buildPayload(SourceSamples sourceSamples, ExpressionMatrix matrix,
+                                             Map<String,String> genePrimaryIDMap, Map<String,String> geneDescriptionMap,
+                                             HeatMapOptions options) {
+        return buildPayload(sourceSamples, matrix, genePrimaryIDMap, geneDescriptionMap, options, matrix.getGeneCount());
+    }
+
+    /**
+     * Build the finished heat map payload for a single source whose matrix may hold only a selection of its genes.
+     *
+     * @param sourceSamples the source and its samples
+     * @param matrix the genes x samples expression matrix for this source
+     * @param genePrimaryIDMap Gene.name to Gene.primaryIdentifier for the genes in the matrix
+     * @param geneDescriptionMap Gene.name to Gene.description for the genes in the matrix
+     * @param options the heat map options
+     * @param totalGeneCount the number of genes with values in this source before selection
+     * @return the payload
+     */
+    public static SourcePayload buildPayload(SourceSamples sourceSamples, ExpressionMatrix matrix,
+                                             Map<String,String> genePrimaryIDMap, Map<String,String> geneDescriptionMap,
+                                             HeatMapOptions options, int totalGeneCount) {
+        SourcePayload payload = new SourcePayload(sourceSamples.source);
+        // aggregated: one column per replicate group holding the mean of its samples, before any clustering
+        boolean aggregated = options.isAggregate() && sourceSamples.replicateGroups!=null;
+        if (aggregated) {
+            matrix = sourceSamples.replicateGroups.aggregate(matrix);
+        }
+        Map<String,Object> jsonMap = new LinkedHashMap<>();
+        jsonMap.put("id", sourceSamples.id);
+        jsonMap.put("primaryIdentifier", sourceSamples.source);
+        jsonMap.put("synopsis", sourceSamples.synopsis);
+        jsonMap.put("unit", sourceSamples.unit);
+        jsonMap.put("sampleCount", matrix.getSampleCount());
+        jsonMap.put("geneCount", matrix.getGeneCount());
+        jsonMap.put("totalGeneCount", totalGeneCount);
+        if (aggregated) {
+            List<Integer> groupSizes = new ArrayList<>();
+            for (int n : sourceSamples.replicateGroups.getGroupSizes()) groupSizes.add(n);
+            jsonMap.put("aggregated", true);
+            jsonMap.put("groupSizes", groupSizes);
+        }
+        payload.sourceJSON = new JSONObject(jsonMap).toString();
+        // canvasXpress "smps" = samples, "vars" = genes, "data" = double[genes][samples], written straight from the matrix
+        if (options.isCluster() && matrix.getGeneCount()>1 && matrix.getGeneCount()<=options.getClusterMaxGenes()) {
+            // clustered: reordered matrix plus "t" dendrograms
+            payload.expressionJSON = HierarchicalClusterer.cluster(matrix).toHeatmapJSON(options.getEncoding());
+        } else {
+            payload.expressionJSON = matrix.toHeatmapJSON(options.getEncoding());
+        }
+        payload.descriptionsJSON = (sourceSamples.descriptionsJSON!=null) ? sourceSamples.descriptionsJSON : new JSONObject(sourceSamples.sampleDescriptions).toString();
+        payload.genePrimaryIDMap = genePrimaryIDMap;
+        payload.geneDescriptionMap = geneDescriptionMap;
+        return payload;
+    }
+
+    /**
+     * Stream the heat map data for the genes in the bag to the given Writer as rows arrive from the values query,
+     * so that only one gene row is held in memory at a time. The output is
+     * <pre>
+     * {"sources":[{"id":..,"primaryIdentifier":..,"synopsis":..,"unit":..,"descriptions":{sample:description,...},
+     *              "y":{"smps":[...],"data":[[...],...],"vars":[...]},
+     *              "genes":{name:{"primaryIdentifier":..,"description":..},...}}, ...]}
+     * </pre>
+     * "vars" follows "data" since the genes aren't known until their rows have been written.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param bag the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all sources
+     * @param sampleCache the sample metadata cache
+     * @param out the Writer, which is flushed after each source
+     * @throws ObjectStoreException if a query fails
+     * @throws IOException if the Writer fails
+     */
+    public static void writeJSON(PathQueryExecutor executor, Model model, BagIds bag, Collection<String> sources,
+                                 ExpressionSampleCache sampleCache, Writer out) throws ObjectStoreException, IOException {
+        Map<String,SourceSamples> sourceSamplesMap = getSourceSamples(executor, model, bag, sources, sampleCache);
+        ExportResultsIterator valuesResult = executor.execute(getExpressionValuesQuery(model, bag, sources));
+        JSONWriter writer = new JSONWriter(out);
+        writer.object();
+        writer.key("sources");
+        writer.array();
+        SourceSamples currentSource = null;
+        String currentGene = null;
+        boolean inGene = false;
+        Map<String,Integer> sampleIndex = null;
+        double[] row = null;
+        List<String> geneNames = new ArrayList<>();
+        List<String> genePrimaryIDs = new ArrayList<>();
+        List<String> geneDescriptions = new ArrayList<>();
+        while (valuesResult.hasNext()) {
+            List<ResultElement> valueRow = valuesResult.next();
+            String source = (String) valueRow.get(0).getField();          // 0 ExpressionValue.sample.source.primaryIdentifier
+            String genePrimaryID = (String) valueRow.get(1).getField();   // 1 ExpressionValue.feature.primaryIdentifier
+            String geneName = (String) valueRow.get(2).getField();        // 2 ExpressionValue.feature.name
+            String geneDescription = (String) valueRow.get(3).getField(); // 3 ExpressionValue.feature.description
+            String sampleName = (String) valueRow.get(4).getField();      // 4 ExpressionValue.sample.name
+            Double value = (Double) valueRow.get(5).getField();           // 5 ExpressionValue.value
+            boolean newSource = (currentSource==null || !currentSource.source.equals(source));
+            if (inGene && (newSource || !Objects.equals(currentGene, geneName))) {
+                writeRow(writer, row);
+                inGene = false;
+            }
+            if (newSource) {
+                if (currentSource!=null) {
+                    endSource(writer, geneNames, genePrimaryIDs, geneDescriptions);
+                    out.flush();
+                }
+                currentSource = sourceSamplesMap.get(source);
+                if (currentSource==null) {
+                    throw new RuntimeException("No samples returned for source:"+source);
+                }
+                sampleIndex = currentSource.getSampleIndex();
+                row = new double[currentSource.sampleNames.size()];
+                geneNames.clear();
+                genePrimaryIDs.clear();
+                geneDescriptions.clear();
+                startSource(writer, currentSource);
+            }
+            if (!inGene) {
+                inGene = true;
+                currentGene = geneName;
+                Arrays.fill(row, 0.0);
+                geneNames.add(geneName);
+                genePrimaryIDs.add(genePrimaryID);
+                geneDescriptions.add(geneDescription);
+            }
+            Integer j = sampleIndex.get(sampleName);
+            if (j!=null) row[j] = value;
+        }
+        // last one
+        if (inGene) {
+            writeRow(writer, row);
+        }
+        if (currentSource!=null) {
+            endSource(writer, geneNames, genePrimaryIDs, geneDescriptions);
+        }
+        writer.endArray();
+        writer.endObject();
+        out.flush();
+    }
+
+    /**
+     * Write a finished payload as a single JSON object. The payload's JSON is already serialized, so it's written
+     * through as-is:
+     * <pre>
+     * {"primaryIdentifier":..,"source":{...},"expression":{"y":{...}},"descriptions":{...},
+     *  "genes":{name:{"primaryIdentifier":..,"description":..},...}}
+     * </pre>
+     *
+     * @param payload the payload
+     * @param out the Writer
+     * @throws IOException if the Writer fails
+     */
+    public static void writePayload(SourcePayload payload, Writer out) throws IOException {
+        out.write("{\"primaryIdentifier\":"+JSONObject.quote(payload.source));
+        out.write(",\"source\":"+payload.sourceJSON);
+        out.write(",\"expression\":"+payload.expressionJSON);
+        out.write(",\"descriptions\":"+payload.descriptionsJSON);
+        out.write(",\"genes\":{");
+        boolean first = true;
+        for (Map.Entry<String,String> entry : payload.genePrimaryIDMap.entrySet()) {
+            if (!first) out.write(',');
+            first = false;
+            out.write(JSONObject.quote(String.valueOf(entry.getKey())));
+            out.write(":{\"primaryIdentifier\":"+JSONObject.quote(entry.getValue()));
+            out.write(",\"description\":"+JSONObject.quote(payload.geneDescriptionMap.get(entry.getKey()))+"}");
+        }
+        out.write("}}");
+    }
+
+    /**
+     * Open a source object and its "y" object and data array.
+     */
+    static void startSource(JSONWriter writer, SourceSamples sourceSamples) {
+        writer.object();
+        writer.key("id").value(sourceSamples.id);
+        writer.key("primaryIdentifier").value(sourceSamples.source);
+        writer.key("synopsis").value(sourceSamples.synopsis);
+        writer.key("unit").value(sourceSamples.unit);
+        writer.key("sampleCount").value(sourceSamples.sampleNames.size());
+        writer.key("descriptions");
+        writer.object();
+        for (String sampleName : sourceSamples.sampleNames) {
+            writer.key(sampleName).value(sourceSamples.sampleDescriptions.get(sampleName));
+        }
+        writer.endObject();
+        writer.key("y");
+        writer.object();
+        writer.key("smps");
+        writer.array();
+        for (String sampleName : sourceSamples.sampleNames) writer.value(sampleName);
+        writer.endArray();
+        writer.key("data");
+        writer.array();
+    }
+
+    /**
+     * Write a single gene row of the data array.
+     */
+    static void writeRow(JSONWriter writer, double[] row) {
+        writer.array();
+        for (double value : row) writer.value(value);
+        writer.endArray();
+    }
+
+    /**
+     * Close the data array, write the genes, and close the source object.
+     */
+    static void endSource(JSONWriter writer, List<String> geneNames, List<String> genePrimaryIDs, List<String> geneDescriptions) {
+        writer.endArray();
+        writer.key("vars");
+        writer.array();
+        for (String geneName : geneNames) writer.value(geneName);
+        writer.endArray();
+        writer.endObject();
+        writer.key("geneCount").value(geneNames.size());
+        writer.key("genes");
+        writer.object();
+        for (int i=0; i<geneNames.size(); i++) {
+            writer.key(String.valueOf(geneNames.get(i)));
+            writer.object();
+            writer.key("primaryIdentifier").value(genePrimaryIDs.get(i));
+            writer.key("description").value(geneDescriptions.get(i));
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * Create a path query to retrieve expression sources for the genes in the bag, alphabetically by ExpressionSource.primaryIdentifier.
+     *
+     * @param model the model
+     * @param bag   the IDs of the bag o'genes
+     * @return the path query
+     */
+    public static PathQuery getSourcesQuery(Model model, BagIds bag) {
+        PathQuery query = new PathQuery(model);
+        query.addView("ExpressionValue.sample.source.primaryIdentifier");   // 0
+        query.addConstraint(bag.in("ExpressionValue.feature"));
+        query.addOrderBy("ExpressionValue.sample.source.primaryIdentifier", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Sources query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve the genes in the bag, by name as in the values query.
+     *
+     * @param model the model
+     * @param bag   the IDs of the bag o'genes
+     * @return the path query
+     */
+    public static PathQuery getGenesQuery(Model model, BagIds bag) {
+        PathQuery query = new PathQuery(model);
+        query.addView("Gene.primaryIdentifier"); // 0
+        query.addView("Gene.name");              // 1
+        query.addView("Gene.description");       // 2
+        query.addConstraint(bag.in("Gene"));
+        query.addOrderBy("Gene.name", OrderDirection.ASC);
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Genes query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve gene expression values from a bag of genes for every expression source,
+     * ordered by ExpressionSource.primaryIdentifier and then gene so that the rows may be split by source and gene as they arrive.
+     *
+     * @param model  the model
+     * @param bag    the IDs of the bag o'genes
+     * @param sources the primaryIdentifiers of the sources to include, or null for all sources
+     * @return the path query
+     */
+    public static PathQuery getExpressionValuesQuery(Model model, BagIds bag, Collection<String> sources) {
+        PathQuery query = new PathQuery(model);
+        // Add views
+        query.addView("ExpressionValue.sample.source.primaryIdentifier"); // 0
+        query.addView("ExpressionValue.feature.primaryIdentifier");       // 1
+        query.addView("ExpressionValue.feature.name");                    // 2
+        query.addView("ExpressionValue.feature.description");             // 3
+        query.addView("ExpressionValue.sample.name");                     // 4
+        query.addView("ExpressionValue.value");                           // 5
+        // Add orderby
+        query.addOrderBy("ExpressionValue.sample.source.primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy("ExpressionValue.feature.name", OrderDirection.ASC);
+        query.addOrderBy("ExpressionValue.sample.replicateGroup", OrderDirection.ASC);
+        query.addOrderBy("ExpressionValue.sample.name", OrderDirection.ASC);
+        // Add bag and source constraints
+        query.addConstraint(bag.in("ExpressionValue.feature"));
+        if (sources!=null) {
+            query.addConstraint(Constraints.oneOfValues("ExpressionValue.sample.source.primaryIdentifier", sources));
+        }
+        query.addConstraint(Constraints.isNotNull("ExpressionValue.value"));
+        List<String> verifyList = query.verifyQuery();
+        if (!verifyList.isEmpty()) throw new RuntimeException("Expression values query invalid: "+verifyList);
+        return query;
+    }
+
+    /**
+     * The inputs shared by the payloads of several sources for one bag, resolved once by getPayloadInputs().
+     */
+    public static class PayloadInputs {
+        final Map<String,SourceSamples> sourceSamplesMap;
+        // Gene.primaryIdentifier, name and description of the genes in the bag, or null if no source is stored
+        final List<String[]> bagGenes;
+
+        PayloadInputs(Map<String,SourceSamples> sourceSamplesMap, List<String[]> bagGenes) {
+            this.sourceSamplesMap = sourceSamplesMap;
+            this.bagGenes = bagGenes;
+        }
+    }
+
+    /**
+     * Expression source and sample container.
+     */
+    public static class SourceSamples {
+        public Integer id;
+        public String source;
+        public String synopsis;
+        public String unit;
+        public List<String> sampleNames = new ArrayList<>();
+        public Map<String,String> sampleDescriptions = new LinkedHashMap<>();
+        // pre-serialized sampleDescriptions, if cached
+        public String descriptionsJSON;
+        // the samples' replicate groups, if cached
+        public ReplicateGroups replicateGroups;
+        SourceSamples(Integer id, String source, String synopsis, String unit) {
+            this.id = id;
+            this.source = source;
+            this.synopsis = synopsis;
+            this.unit = unit;
+        }
+        /**
+         * @return a map of sample name to its column index
+         */
+        public Map<String,Integer> getSampleIndex() {
+            Map<String,Integer> sampleIndex = new LinkedHashMap<>();
+            for (int j=0; j<sampleNames.size(); j++) {
+                sampleIndex.put(sampleNames.get(j), j);
+            }
+            return sampleIndex;
+        }
+    }
+
+    /**
+     * The finished heat map payload for a single source: the JSON strings and gene maps that HeatMapController
+     * hands to the JSP.
+     */
+    public static class SourcePayload {
+        public String source;
+        public String sourceJSON;
+        public String expressionJSON;
+        public String descriptionsJSON;
+        public Map<String,String> genePrimaryIDMap = new LinkedHashMap<>();
+        public Map<String,String> geneDescriptionMap = new LinkedHashMap<>();
+        SourcePayload(String source) {
+            this.source = source;
+        }
+        /**
+         * @return the approximate size of this payload in bytes, for HeatMapCache
+         */
+        public long getBytes() {
+            long chars = length(source) + length(sourceJSON) + length(expressionJSON) + length(descriptionsJSON);
+            for (Map.Entry<String,String> entry : genePrimaryIDMap.entrySet()) {
+                chars += length(entry.getKey()) + length(entry.getValue());
+            }
+            for (Map.Entry<String,String> entry : geneDescriptionMap.entrySet()) {
+                chars += length(entry.getKey()) + length(entry.getValue());
+            }
+            // two bytes per char plus rough per-entry overhead
+            return 2*chars + 64L*(genePrimaryIDMap.size() + geneDescriptionMap.size());
+        }
+        static long length(String s) {
+            return (s==null) ? 0 : s.length();
+        }
+    }
+}
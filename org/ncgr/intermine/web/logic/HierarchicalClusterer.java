@@ -0,0 +1,358 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.json.JSONWriter;
+
+/**
+ * Server-side average-linkage (UPGMA) hierarchical clustering of the genes and samples of an ExpressionMatrix,
+ * so that CanvasXpress doesn't have to cluster large heat maps in the browser.
+ *
+ * Euclidean distance matrices are computed with fork/join parallelism and stored as condensed upper triangles of floats;
+ * the clustering itself uses the nearest-neighbor chain algorithm, which is O(n^2) for average linkage.
+ *
+ * @author Sam Hokin
+ */
+public class HierarchicalClusterer {
+
+    // rows per fork/join leaf task when computing distances
+    static final int DISTANCE_TASK_ROWS = 16;
+
+    /**
+     * Cluster the genes and samples of the given matrix.
+     *
+     * @param matrix the genes x samples matrix
+     * @return the reordered matrix along with gene and sample dendrograms
+     */
+    public static Result cluster(ExpressionMatrix matrix) {
+        int genes = matrix.getGeneCount();
+        int samples = matrix.getSampleCount();
+        double[] byGene = matrix.getData();
+        // transpose for the sample distances so both passes read contiguous rows
+        double[] bySample = new double[samples*genes];
+        for (int i=0; i<genes; i++) {
+            for (int j=0; j<samples; j++) {
+                bySample[j*genes+i] = byGene[i*samples+j];
+            }
+        }
+        // the reordered matrix keeps the raw names; they're only encoded in the Newick strings
+        List<String> geneNames = matrix.getGeneNames();
+        List<String> sampleNames = matrix.getSampleNames();
+        Tree geneTree = averageLinkage(distances(byGene, genes, samples), genes);
+        Tree sampleTree = averageLinkage(distances(bySample, samples, genes), samples);
+        int[] geneOrder = geneTree.leafOrder();
+        int[] sampleOrder = sampleTree.leafOrder();
+        List<String> orderedGeneNames = new ArrayList<>();
+        for (int i : geneOrder) orderedGeneNames.add(geneNames.get(i));
+        List<String> orderedSampleNames = new ArrayList<>();
+        for (int j : sampleOrder) orderedSampleNames.add(sampleNames.get(j));
+        return new Result(matrix.reorder(geneOrder, sampleOrder, orderedGeneNames, orderedSampleNames),
+                          geneTree.toNewick(geneNames), sampleTree.toNewick(sampleNames));
+    }
+
+    /**
+     * Compute the condensed Euclidean distance matrix between the n rows of length m of the given row-major array.
+     *
+     * @param x the row-major data
+     * @param n the number of rows
+     * @param m the row length
+     * @return the condensed upper triangle, d(i,j) for i<j at index(n,i,j)
+     */
+    static float[] distances(double[] x, int n, int m) {
+        float[] dist = new float[(int) ((long) n*(n-1)/2)];
+        if (n>1) {
+            ForkJoinPool.commonPool().invoke(new DistanceTask(x, n, m, dist, 0, n));
+        }
+        return dist;
+    }
+
+    /**
+     * @return the index of d(i,j), i<j, in a condensed distance matrix of n rows
+     */
+    static int index(int n, int i, int j) {
+        return (int) ((long) i*n - (long) i*(i+1)/2 + (j-i-1));
+    }
+
+    /**
+     * @return d(i,j) from a condensed distance matrix of n rows
+     */
+    static float distance(float[] dist, int n, int i, int j) {
+        return (i<j) ? dist[index(n, i, j)] : dist[index(n, j, i)];
+    }
+
+    /**
+     * Average-linkage clustering of n items with the nearest-neighbor chain algorithm. The condensed distance matrix
+     * is updated in place with the Lance-Williams formula as clusters are merged.
+     *
+     * @param dist the condensed distance matrix, which is overwritten
+     * @param n the number of items
+     * @return the dendrogram
+     */
+    static Tree averageLinkage(float[] dist, int n) {
+        Tree tree = new Tree(n);
+        boolean[] active = new boolean[n];
+        int[] size = new int[n];
+        // the tree node currently represented by each active slot
+        int[] node = new int[n];
+        for (int i=0; i<n; i++) {
+            active[i] = true;
+            size[i] = 1;
+            node[i] = i;
+        }
+        int[] chain = new int[n];
+        int chainSize = 0;
+        int remaining = n;
+        while (remaining>1) {
+            if (chainSize==0) {
+                for (int i=0; i<n; i++) {
+                    if (active[i]) {
+                        chain[chainSize++] = i;
+                        break;
+                    }
+                }
+            }
+            int a = chain[chainSize-1];
+            // prefer the previous chain element on ties so the chain always terminates
+            int b = -1;
+            float best = Float.MAX_VALUE;
+            if (chainSize>1) {
+                b = chain[chainSize-2];
+                best = distance(dist, n, a, b);
+            }
+            for (int k=0; k<n; k++) {
+                if (k!=a && active[k]) {
+                    float d = distance(dist, n, a, k);
+                    if (d<best) {
+                        best = d;
+                        b = k;
+                    }
+                }
+            }
+            if (chainSize>1 && b==chain[chainSize-2]) {
+                // reciprocal nearest neighbors: merge b into a
+                chainSize -= 2;
+                for (int k=0; k<n; k++) {
+                    if (k!=a && k!=b && active[k]) {
+                        float dak = distance(dist, n, a, k);
+                        float dbk = distance(dist, n, b, k);
+                        float d = (size[a]*dak + size[b]*dbk) / (size[a]+size[b]);
+                        if (a<k) {
+                            dist[index(n, a, k)] = d;
+                        } else {
+                            dist[index(n, k, a)] = d;
+                        }
+                    }
+                }
+                node[a] = tree.merge(node[a], node[b], best);
+                size[a] += size[b];
+                active[b] = false;
+                remaining--;
+            } else {
+                chain[chainSize++] = b;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Encode the characters that Newick (and CanvasXpress' tree parsing) use as separators.
+     */
+    static String fixSymbols(String name) {
+        String symbol = String.valueOf(name);
+        symbol = symbol.replace("(", "%28");
+        symbol = symbol.replace(")", "%29");
+        symbol = symbol.replace(":", "%3A");
+        symbol = symbol.replace(",", "%2C");
+        symbol = symbol.replace(";", "%3B");
+        return symbol;
+    }
+
+    /**
+     * Fork/join computation of a band of rows of the condensed distance matrix.
+     */
+    static class DistanceTask extends RecursiveAction {
+        final double[] x;
+        final int n, m;
+        final float[] dist;
+        final int lo, hi;
+        DistanceTask(double[] x, int n, int m, float[] dist, int lo, int hi) {
+            this.x = x;
+            this.n = n;
+            this.m = m;
+            this.dist = dist;
+            this.lo = lo;
+            this.hi = hi;
+        }
+        @Override
+        protected void compute() {
+            if (hi-lo<=DISTANCE_TASK_ROWS) {
+                for (int i=lo; i<hi; i++) {
+                    int io = i*m;
+                    for (int j=i+1; j<n; j++) {
+                        int jo = j*m;
+                        double sum = 0.0;
+                        for (int k=0; k<m; k++) {
+                            double diff = x[io+k] - x[jo+k];
+                            sum += diff*diff;
+                        }
+                        dist[index(n, i, j)] = (float) Math.sqrt(sum);
+                    }
+                }
+            } else {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new DistanceTask(x, n, m, dist, lo, mid), new DistanceTask(x, n, m, dist, mid, hi));
+            }
+        }
+    }
+
+    /**
+     * A dendrogram over n leaves 0..n-1; internal nodes are numbered n, n+1, ... in merge order.
+     */
+    static class Tree {
+        final int n;
+        final int[] left;
+        final int[] right;
+        final float[] height;
+        int merges = 0;
+        Tree(int n) {
+            this.n = n;
+            left = new int[Math.max(n-1, 0)];
+            right = new int[Math.max(n-1, 0)];
+            height = new float[Math.max(n-1, 0)];
+        }
+        int merge(int a, int b, float distance) {
+            left[merges] = a;
+            right[merges] = b;
+            // UPGMA node height is half the cluster distance; keep heights monotone against float round-off
+            height[merges] = Math.max(distance/2, Math.max(heightOf(a), heightOf(b)));
+            return n + merges++;
+        }
+        float heightOf(int node) {
+            return (node<n) ? 0.0f : height[node-n];
+        }
+        int root() {
+            return (n==1) ? 0 : n + merges - 1;
+        }
+        /**
+         * @return the leaves in left-to-right order
+         */
+        int[] leafOrder() {
+            int[] order = new int[n];
+            if (n==0) return order;
+            int count = 0;
+            int[] stack = new int[n];
+            int top = 0;
+            stack[top++] = root();
+            while (top>0) {
+                int node = stack[--top];
+                if (node<n) {
+                    order[count++] = node;
+                } else {
+                    stack[top++] = right[node-n];
+                    stack[top++] = left[node-n];
+                }
+            }
+            return order;
+        }
+        /**
+         * @param names the leaf names, which are encoded with fixSymbols()
+         * @return the Newick string with branch lengths
+         */
+        String toNewick(List<String> names) {
+            if (n==0) return ";";
+            int[] parents = new int[n+merges];
+            Arrays.fill(parents, -1);
+            for (int k=0; k<merges; k++) {
+                parents[left[k]] = n+k;
+                parents[right[k]] = n+k;
+            }
+            // iterative walk: entries >= 0 are nodes to open, COMMA writes a separator, -node-2 closes a node
+            final int COMMA = -1;
+            StringBuilder newick = new StringBuilder();
+            int[] stack = new int[3*n];
+            int top = 0;
+            stack[top++] = root();
+            while (top>0) {
+                int entry = stack[--top];
+                if (entry==COMMA) {
+                    newick.append(',');
+                } else if (entry<0) {
+                    int node = -entry-2;
+                    newick.append(')');
+                    appendLength(newick, parents, node);
+                } else if (entry<n) {
+                    newick.append(fixSymbols(names.get(entry)));
+                    appendLength(newick, parents, entry);
+                } else {
+                    newick.append('(');
+                    stack[top++] = -entry-2;
+                    stack[top++] = right[entry-n];
+                    stack[top++] = COMMA;
+                    stack[top++] = left[entry-n];
+                }
+            }
+            newick.append(';');
+            return newick.toString();
+        }
+        void appendLength(StringBuilder newick, int[] parents, int node) {
+            if (parents[node]>=0) {
+                newick.append(':').append(heightOf(parents[node]) - heightOf(node));
+            }
+        }
+    }
+
+    /**
+     * The clustered, reordered matrix and its gene (vars) and sample (smps) dendrograms.
+     */
+    public static class Result {
+        final ExpressionMatrix matrix;
+        final String geneNewick;
+        final String sampleNewick;
+        Result(ExpressionMatrix matrix, String geneNewick, String sampleNewick) {
+            this.matrix = matrix;
+            this.geneNewick = geneNewick;
+            this.sampleNewick = sampleNewick;
+        }
+        public ExpressionMatrix getMatrix() {
+            return matrix;
+        }
+        public String getGeneNewick() {
+            return geneNewick;
+        }
+        public String getSampleNewick() {
+            return sampleNewick;
+        }
+        /**
+         * Return the CanvasXpress heat map JSON with the dendrograms, {"y":{...},"t":{"vars":newick,"smps":newick}}.
+         *
+         * @return the JSON string
+         */
+        public String toHeatmapJSON() {
+            return toHeatmapJSON(ExpressionEncoding.Type.JSON);
+        }
+
+        /**
+         * @param encoding the encoding of the values
+         * @return the CanvasXpress heat map JSON with the values in the given encoding
+         */
+        public String toHeatmapJSON(ExpressionEncoding.Type encoding) {
+            StringWriter out = new StringWriter();
+            JSONWriter writer = new JSONWriter(out);
+            writer.object();
+            writer.key("y");
+            matrix.writeY(writer, encoding);
+            writer.key("t");
+            writer.object();
+            writer.key("vars").value(geneNewick);
+            writer.key("smps").value(sampleNewick);
+            writer.endObject();
+            writer.endObject();
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A markers x lines matrix of genotype calls packed two bits per call, for holding whole mapping populations and
+ * genotyping studies in memory.
+ *
+ * The common calls A, B and H each get a 2-bit code and the fourth code means missing. Any other call (e.g. a
+ * multi-character or lower-case call) is kept verbatim in a small escape table keyed by its position, with the
+ * missing code in the packed array. Rows are contiguous, so a marker's row is decoded with sequential reads; a
+ * line's column is read with a stride.
+ *
+ * The Map views (asRowMap(), getLineValues()) decode on access, so the JSPs can keep iterating maps without the
+ * calls ever being expanded to a char or String each.
+ *
+ * @author Sam Hokin
+ */
+public class PackedGenotypeMatrix {
+
+    static final int MISSING = 0;
+    static final int A = 1;
+    static final int B = 2;
+    static final int H = 3;
+    static final char[] CALLS = { '\0', 'A', 'B', 'H' };
+    static final int CALLS_PER_WORD = 32;
+
+    private final List<String> markers;
+    private final List<String> lines;
+    private final Map<String,Integer> markerIndex;
+    private final Map<String,Integer> lineIndex;
+    private final long[] words;
+    // calls that aren't A, B or H, by position i*lineCount+j
+    private final Map<Long,String> escapes = new HashMap<>();
+
+    /**
+     * Construct an all-missing matrix.
+     *
+     * @param markers the marker names, in row order
+     * @param lines the line names, in column order
+     */
+    public PackedGenotypeMatrix(List<String> markers, List<String> lines) {
+        this.markers = Collections.unmodifiableList(new ArrayList<>(markers));
+        this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+        this.markerIndex = index(this.markers);
+        this.lineIndex = index(this.lines);
+        long calls = (long) markers.size()*lines.size();
+        long wordCount = (calls+CALLS_PER_WORD-1)/CALLS_PER_WORD;
+        if (wordCount>Integer.MAX_VALUE) {
+            throw new RuntimeException("Genotype matrix of "+markers.size()+" markers x "+lines.size()+" lines is too large.");
+        }
+        this.words = new long[(int) wordCount];
+    }
+
+    static Map<String,Integer> index(List<String> names) {
+        Map<String,Integer> index = new HashMap<>(names.size()*2);
+        for (int k=0; k<names.size(); k++) {
+            index.put(names.get(k), k);
+        }
+        return index;
+    }
+
+    /**
+     * Return the 2-bit code of a call, or -1 if it has to be escaped.
+     */
+    static int encode(String value) {
+        if (value==null || value.length()==0) return MISSING;
+        if (value.length()>1) return -1;
+        switch (value.charAt(0)) {
+        case 'A': return A;
+        case 'B': return B;
+        case 'H': return H;
+        default: return -1;
+        }
+    }
+
+    int getCode(long position) {
+        int word = (int) (position/CALLS_PER_WORD);
+        int shift = (int) (position%CALLS_PER_WORD)*2;
+        return (int) ((words[word]>>>shift) & 3L);
+    }
+
+    void setCode(long position, int code) {
+        int word = (int) (position/CALLS_PER_WORD);
+        int shift = (int) (position%CALLS_PER_WORD)*2;
+        words[word] = (words[word] & ~(3L<<shift)) | ((long) code<<shift);
+    }
+
+    long position(int i, int j) {
+        return (long) i*lines.size()+j;
+    }
+
+    /**
+     * Set a call.
+     *
+     * @param i the marker row index
+     * @param j the line column index
+     * @param value the call, null or empty for missing
+     */
+    public void set(int i, int j, String value) {
+        long position = position(i, j);
+        int code = encode(value);
+        if (code<0) {
+            escapes.put(position, value);
+            setCode(position, MISSING);
+        } else {
+            if (!escapes.isEmpty()) escapes.remove(position);
+            setCode(position, code);
+        }
+    }
+
+    /**
+     * Set a call by marker and line name.
+     *
+     * @param marker the marker name
+     * @param line the line name
+     * @param value the call, null or empty for missing
+     * @return false if the marker or line isn't in the matrix, in which case the call is dropped
+     */
+    public boolean set(String marker, String line, String value) {
+        Integer i = markerIndex.get(marker);
+        Integer j = lineIndex.get(line);
+        if (i==null || j==null) return false;
+        set(i, j, value);
+        return true;
+    }
+
+    /**
+     * @param i the marker row index
+     * @param j the line column index
+     * @return the call, or null if missing
+     */
+    public String getValue(int i, int j) {
+        long position = position(i, j);
+        int code = getCode(position);
+        if (code!=MISSING) return String.valueOf(CALLS[code]);
+        return escapes.isEmpty() ? null : escapes.get(position);
+    }
+
+    /**
+     * @param i the marker row index
+     * @param j the line column index
+     * @return the call as a single char, the first char of an escaped call, or '\0' if missing
+     */
+    public char getCall(int i, int j) {
+        long position = position(i, j);
+        int code = getCode(position);
+        if (code!=MISSING || escapes.isEmpty()) return CALLS[code];
+        String value = escapes.get(position);
+        return (value==null) ? '\0' : value.charAt(0);
+    }
+
+    /**
+     * @param i the marker row index
+     * @return the marker's calls across the lines, '\0' where missing
+     */
+    public char[] getRow(int i) {
+        char[] row = new char[lines.size()];
+        long position = position(i, 0);
+        for (int j=0; j<row.length; j++, position++) {
+            int code = getCode(position);
+            row[j] = CALLS[code];
+            if (code==MISSING && !escapes.isEmpty()) {
+                String value = escapes.get(position);
+                if (value!=null) row[j] = value.charAt(0);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @param j the line column index
+     * @return the line's calls across the markers, '\0' where missing
+     */
+    public char[] getColumn(int j) {
+        char[] column = new char[markers.size()];
+        for (int i=0; i<column.length; i++) {
+            column[i] = getCall(i, j);
+        }
+        return column;
+    }
+
+    /**
+     * Return a marker's row as a string of calls, for compact serialization.
+     *
+     * @param i the marker row index
+     * @param missing the char to write for a missing call
+     * @return the row string, one char per line
+     */
+    public String getRowString(int i, char missing) {
+        char[] row = getRow(i);
+        for (int j=0; j<row.length; j++) {
+            if (row[j]=='\0') row[j] = missing;
+        }
+        return new String(row);
+    }
+
+    /**
+     * @return a read-only view of marker name to decoded row, in row order
+     */
+    public Map<String,char[]> asRowMap() {
+        return new AbstractMap<String,char[]>() {
+            @Override
+            public char[] get(Object marker) {
+                Integer i = markerIndex.get(marker);
+                return (i==null) ? null : getRow(i);
+            }
+            @Override
+            public boolean containsKey(Object marker) {
+                return markerIndex.containsKey(marker);
+            }
+            @Override
+            public int size() {
+                return markers.size();
+            }
+            @Override
+            public Set<Map.Entry<String,char[]>> entrySet() {
+                return new AbstractSet<Map.Entry<String,char[]>>() {
+                    @Override
+                    public int size() {
+                        return markers.size();
+                    }
+                    @Override
+                    public Iterator<Map.Entry<String,char[]>> iterator() {
+                        return new Iterator<Map.Entry<String,char[]>>() {
+                            int i = 0;
+                            @Override
+                            public boolean hasNext() {
+                                return i<markers.size();
+                            }
+                            @Override
+                            public Map.Entry<String,char[]> next() {
+                                Map.Entry<String,char[]> entry = new AbstractMap.SimpleImmutableEntry<>(markers.get(i), getRow(i));
+                                i++;
+                                return entry;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @param i the marker row index
+     * @return a read-only view of line name to call for a single marker, in line order, with null for missing
+     */
+    public Map<String,String> getLineValues(final int i) {
+        return new AbstractMap<String,String>() {
+            @Override
+            public String get(Object line) {
+                Integer j = lineIndex.get(line);
+                return (j==null) ? null : getValue(i, j);
+            }
+            @Override
+            public boolean containsKey(Object line) {
+                return lineIndex.containsKey(line);
+            }
+            @Override
+            public int size() {
+                return lines.size();
+            }
+            @Override
+            public Set<Map.Entry<String,String>> entrySet() {
+                return new AbstractSet<Map.Entry<String,String>>() {
+                    @Override
+                    public int size() {
+                        return lines.size();
+                    }
+                    @Override
+                    public Iterator<Map.Entry<String,String>> iterator() {
+                        return new Iterator<Map.Entry<String,String>>() {
+                            int j = 0;
+                            @Override
+                            public boolean hasNext() {
+                                return j<lines.size();
+                            }
+                            @Override
+                            public Map.Entry<String,String> next() {
+                                Map.Entry<String,String> entry = new AbstractMap.SimpleImmutableEntry<>(lines.get(j), getValue(i, j));
+                                j++;
+                                return entry;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    public List<String> getMarkers() {
+        return markers;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public int getMarkerCount() {
+        return markers.size();
+    }
+
+    public int getLineCount() {
+        return lines.size();
+    }
+
+    /**
+     * @param marker the marker name
+     * @return the row index, or -1 if the marker isn't in the matrix
+     */
+    public int getMarkerIndex(String marker) {
+        Integer i = markerIndex.get(marker);
+        return (i==null) ? -1 : i;
+    }
+
+    /**
+     * @param line the line name
+     * @return the column index, or -1 if the line isn't in the matrix
+     */
+    public int getLineIndex(String line) {
+        Integer j = lineIndex.get(line);
+        return (j==null) ? -1 : j;
+    }
+
+    /**
+     * @return the number of calls held in the escape table
+     */
+    public int getEscapeCount() {
+        return escapes.size();
+    }
+
+    /**
+     * @return the approximate size of the packed calls and escape table in bytes
+     */
+    public long getBytes() {
+        long bytes = 8L*words.length;
+        for (String value : escapes.values()) {
+            bytes += 64 + 2L*value.length();
+        }
+        return bytes;
+    }
+}
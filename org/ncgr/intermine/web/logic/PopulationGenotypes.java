@@ -0,0 +1,228 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.intermine.api.query.PathQueryExecutor;
+import org.intermine.api.results.ExportResultsIterator;
+import org.intermine.api.results.ResultElement;
+import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.pathquery.Constraints;
+import org.intermine.pathquery.OrderDirection;
+import org.intermine.pathquery.PathQuery;
+
+/**
+ * The markers, lines and packed genotype calls of one mapping population for a bag of markers. Populations are
+ * independent of each other, so MarkerGenotypesController loads them concurrently as tasks on the shared bounded
+ * pool returned by getPool().
+ *
+ * Calls come from the GenotypeStore (genotype.store.dir) when the population has been exported to it, and from the
+ * GenotypeValue query otherwise.
+ *
+ * web.properties:
+ *   genotypes.threads=N         threads shared by all population loads (default 4)
+ *   genotypes.timeoutSeconds=N  how long a page waits for a population (default 30)
+ *
+ * @author Sam Hokin
+ */
+public class PopulationGenotypes {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_TIMEOUT_SECONDS = 30;
+    static final int QUEUE_SIZE = 64;
+
+    private static ThreadPoolExecutor pool;
+
+    final String mappingPopulation;
+    final Map<String,Integer> markers = new LinkedHashMap<>();
+    final Map<String,Integer> lines = new LinkedHashMap<>();
+    PackedGenotypeMatrix matrix;
+
+    PopulationGenotypes(String mappingPopulation) {
+        this.mappingPopulation = mappingPopulation;
+    }
+
+    /**
+     * Return the shared pool, creating it with the given number of threads on first use. When the queue is full a
+     * submission is rejected with a RejectedExecutionException, so the request thread never runs a load itself and
+     * its timeout always applies.
+     *
+     * @param threads the number of threads, e.g. from genotypes.threads
+     * @return the pool
+     */
+    public static synchronized ThreadPoolExecutor getPool(int threads) {
+        if (pool==null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            int n = Math.max(threads, 1);
+            pool = new ThreadPoolExecutor(n, n, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                          new ThreadFactory() {
+                                              @Override
+                                              public Thread newThread(Runnable r) {
+                                                  Thread thread = new Thread(r, "genotypes-"+threadCount.incrementAndGet());
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              }
+                                          },
+                                          new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+        }
+        return pool;
+    }
+
+    /**
+     * Return a task that loads one population.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param store the GenotypeStore, or null
+     * @param bagIds the IDs of the bag of markers
+     * @param mappingPopulation the MappingPopulation.primaryIdentifier
+     * @return the task
+     */
+    public static Callable<PopulationGenotypes> task(final PathQueryExecutor executor, final Model model, final GenotypeStore store,
+                                                     final BagIds bagIds, final String mappingPopulation) {
+        return new Callable<PopulationGenotypes>() {
+            @Override
+            public PopulationGenotypes call() throws ObjectStoreException {
+                return load(executor, model, store, bagIds, mappingPopulation);
+            }
+        };
+    }
+
+    /**
+     * Query the bag's markers in a population, the population's lines, and the genotype calls of those markers and lines.
+     *
+     * @param executor the PathQueryExecutor
+     * @param model the model
+     * @param store the GenotypeStore, or null
+     * @param bagIds the IDs of the bag of markers
+     * @param mappingPopulation the MappingPopulation.primaryIdentifier
+     * @return the population's genotypes
+     * @throws ObjectStoreException if a query fails
+     */
+    public static PopulationGenotypes load(PathQueryExecutor executor, Model model, GenotypeStore store, BagIds bagIds, String mappingPopulation)
+        throws ObjectStoreException {
+        PopulationGenotypes genotypes = new PopulationGenotypes(mappingPopulation);
+
+        // the markers in the bag that belong to this population
+        ExportResultsIterator markerResults = executor.execute(getMarkersQuery(model, bagIds, mappingPopulation));
+        while (markerResults.hasNext()) {
+            List<ResultElement> row = markerResults.next();
+            genotypes.markers.put((String) row.get(0).getField(), (Integer) row.get(1).getField());
+        }
+
+        // the population's lines
+        ExportResultsIterator lineResults = executor.execute(getLinesQuery(model, mappingPopulation));
+        while (lineResults.hasNext()) {
+            List<ResultElement> row = lineResults.next();
+            genotypes.lines.put((String) row.get(0).getField(), (Integer) row.get(1).getField());
+        }
+
+        // the calls, sliced from the store if the population is in it
+        GenotypeStore.Matrix stored = (store==null) ? null : store.getMatrix(GenotypeStore.Kind.POPULATION, mappingPopulation);
+        if (stored!=null) {
+            genotypes.matrix = stored.slice(genotypes.markers.keySet(), genotypes.lines.keySet());
+            return genotypes;
+        }
+        // otherwise queried, placed by marker and line so a missing value leaves a blank instead of shifting the row
+        genotypes.matrix = new PackedGenotypeMatrix(new ArrayList<>(genotypes.markers.keySet()), new ArrayList<>(genotypes.lines.keySet()));
+        ExportResultsIterator valueResults = executor.execute(getValuesQuery(model, bagIds, mappingPopulation));
+        while (valueResults.hasNext()) {
+            List<ResultElement> row = valueResults.next();
+            genotypes.matrix.set((String) row.get(0).getField(), (String) row.get(1).getField(), (String) row.get(2).getField());
+        }
+        return genotypes;
+    }
+
+    /**
+     * Create a path query to retrieve the bag's markers in a population, primaryIdentifier and id, in row order.
+     *
+     * @param model the model
+     * @param bagIds the IDs of the bag of markers
+     * @param mappingPopulation the MappingPopulation.primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getMarkersQuery(Model model, BagIds bagIds, String mappingPopulation) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "GeneticMarker.primaryIdentifier", // 0
+                       "GeneticMarker.id"                 // 1
+                       );
+        query.addConstraint(bagIds.in("GeneticMarker"));
+        query.addConstraint(Constraints.eq("GeneticMarker.mappingPopulations.primaryIdentifier", mappingPopulation));
+        query.addOrderBy("GeneticMarker.primaryIdentifier", OrderDirection.ASC);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve a population's lines, primaryIdentifier and id, in column order.
+     *
+     * @param model the model
+     * @param mappingPopulation the MappingPopulation.primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getLinesQuery(Model model, String mappingPopulation) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "MappingPopulation.lines.primaryIdentifier", // 0
+                       "MappingPopulation.lines.id"                 // 1
+                       );
+        query.addConstraint(Constraints.eq("MappingPopulation.primaryIdentifier", mappingPopulation));
+        query.addOrderBy("MappingPopulation.lines.primaryIdentifier", OrderDirection.ASC);
+        return query;
+    }
+
+    /**
+     * Create a path query to retrieve the calls of the bag's markers in a population, marker by marker, in row and
+     * column order.
+     *
+     * @param model the model
+     * @param bagIds the IDs of the bag of markers
+     * @param mappingPopulation the MappingPopulation.primaryIdentifier
+     * @return the path query
+     */
+    static PathQuery getValuesQuery(Model model, BagIds bagIds, String mappingPopulation) {
+        PathQuery query = new PathQuery(model);
+        query.addViews(
+                       "GenotypeValue.marker.primaryIdentifier", // 0
+                       "GenotypeValue.line.primaryIdentifier",   // 1
+                       "GenotypeValue.value"                     // 2
+                       );
+        query.addConstraint(bagIds.in("GenotypeValue.marker"));
+        query.addConstraint(Constraints.eq("GenotypeValue.line.mappingPopulation.primaryIdentifier", mappingPopulation));
+        query.addOrderBy("GenotypeValue.marker.primaryIdentifier", OrderDirection.ASC);
+        query.addOrderBy("GenotypeValue.line.primaryIdentifier", OrderDirection.ASC);
+        return query;
+    }
+
+    public String getMappingPopulation() {
+        return mappingPopulation;
+    }
+
+    /**
+     * @return the bag's markers in this population, primaryIdentifier to id, in row order
+     */
+    public Map<String,Integer> getMarkers() {
+        return markers;
+    }
+
+    /**
+     * @return the population's lines, primaryIdentifier to id, in column order
+     */
+    public Map<String,Integer> getLines() {
+        return lines;
+    }
+
+    public PackedGenotypeMatrix getMatrix() {
+        return matrix;
+    }
+}
@@ -0,0 +1,195 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONWriter;
+
+/**
+ * The replicate groups of a source's samples, in chart order, used to aggregate a row of sample values into a mean,
+ * standard deviation and count per group on the server instead of sending every replicate to CanvasXpress. Samples
+ * without a replicateGroup form a group of their own, named by the sample.
+ *
+ * Each row is aggregated in a single pass over its samples with Welford's update, so no per-group lists are built.
+ *
+ * @author Sam Hokin
+ */
+public class ReplicateGroups {
+
+    private final List<String> groupNames;
+    // sampleGroup[j] = the group index of sample j
+    private final int[] sampleGroup;
+    private final int[] groupSizes;
+
+    /**
+     * Construct from the samples of a source and their replicate groups.
+     *
+     * @param sampleNames the sample names, in chart order
+     * @param sampleRepgroups the replicate group of each sample, null where it has none
+     */
+    public ReplicateGroups(List<String> sampleNames, List<String> sampleRepgroups) {
+        Map<String,Integer> groupIndex = new LinkedHashMap<>();
+        sampleGroup = new int[sampleNames.size()];
+        for (int j=0; j<sampleGroup.length; j++) {
+            String repgroup = sampleRepgroups.get(j);
+            String groupName = (repgroup==null) ? sampleNames.get(j) : repgroup;
+            Integer g = groupIndex.get(groupName);
+            if (g==null) {
+                g = groupIndex.size();
+                groupIndex.put(groupName, g);
+            }
+            sampleGroup[j] = g;
+        }
+        groupNames = Collections.unmodifiableList(new ArrayList<>(groupIndex.keySet()));
+        groupSizes = new int[groupNames.size()];
+        for (int g : sampleGroup) groupSizes[g]++;
+    }
+
+    public List<String> getGroupNames() {
+        return groupNames;
+    }
+
+    public int getGroupCount() {
+        return groupNames.size();
+    }
+
+    public int getSampleCount() {
+        return sampleGroup.length;
+    }
+
+    /**
+     * @return the number of samples in each group
+     */
+    public int[] getGroupSizes() {
+        return groupSizes.clone();
+    }
+
+    /**
+     * Aggregate a row of sample values by group.
+     *
+     * @param values the values, by sample index
+     * @param present the samples that have a value, or null if all of them do
+     * @return the per-group mean, standard deviation and count
+     */
+    public Aggregate aggregate(double[] values, BitSet present) {
+        Aggregate aggregate = new Aggregate(groupNames.size());
+        aggregate(values, present, aggregate);
+        return aggregate;
+    }
+
+    /**
+     * Aggregate a row of sample values by group into a reusable Aggregate, so rows of a matrix can be aggregated
+     * without allocating per row.
+     *
+     * @param values the values, by sample index
+     * @param present the samples that have a value, or null if all of them do
+     * @param aggregate the Aggregate to fill, sized for this grouping
+     */
+    public void aggregate(double[] values, BitSet present, Aggregate aggregate) {
+        aggregate.reset();
+        for (int j=0; j<sampleGroup.length; j++) {
+            if (present!=null && !present.get(j)) continue;
+            aggregate.add(sampleGroup[j], values[j]);
+        }
+    }
+
+    /**
+     * Aggregate every row of a genes x samples matrix, returning a genes x groups matrix of group means. Missing cells
+     * are skipped, as they are for the bar chart, and a group with no values is left missing in the means.
+     *
+     * @param matrix the matrix, with this grouping's samples as its columns
+     * @return the matrix of means, with the group names as its columns
+     */
+    public ExpressionMatrix aggregate(ExpressionMatrix matrix) {
+        if (matrix.getSampleCount()!=sampleGroup.length) {
+            throw new RuntimeException("Matrix has "+matrix.getSampleCount()+" samples, replicate groups have "+sampleGroup.length+".");
+        }
+        ExpressionMatrix means = new ExpressionMatrix(groupNames);
+        double[] row = new double[sampleGroup.length];
+        BitSet present = new BitSet(sampleGroup.length);
+        Aggregate aggregate = new Aggregate(groupNames.size());
+        for (int i=0; i<matrix.getGeneCount(); i++) {
+            present.clear();
+            for (int j=0; j<row.length; j++) {
+                row[j] = matrix.getValue(i, j);
+                if (matrix.isPresent(i, j)) present.set(j);
+            }
+            aggregate(row, present, aggregate);
+            int gene = means.addGene(matrix.getGeneNames().get(i));
+            for (int g=0; g<groupNames.size(); g++) {
+                if (aggregate.n[g]>0) means.set(gene, g, aggregate.mean[g]);
+            }
+        }
+        return means;
+    }
+
+    /**
+     * Write the group sizes as a JSON array.
+     *
+     * @param writer the JSONWriter
+     */
+    public void writeGroupSizes(JSONWriter writer) {
+        writer.array();
+        for (int n : groupSizes) writer.value(n);
+        writer.endArray();
+    }
+
+    /**
+     * The running Welford statistics of each group.
+     */
+    public static class Aggregate {
+        final int[] n;
+        final double[] mean;
+        final double[] m2;
+
+        Aggregate(int groupCount) {
+            n = new int[groupCount];
+            mean = new double[groupCount];
+            m2 = new double[groupCount];
+        }
+
+        void reset() {
+            for (int g=0; g<n.length; g++) {
+                n[g] = 0;
+                mean[g] = 0.0;
+                m2[g] = 0.0;
+            }
+        }
+
+        void add(int g, double value) {
+            n[g]++;
+            double delta = value - mean[g];
+            mean[g] += delta/n[g];
+            m2[g] += delta*(value - mean[g]);
+        }
+
+        /**
+         * @return the group means, 0.0 for groups without values
+         */
+        public double[] getMeans() {
+            return mean.clone();
+        }
+
+        /**
+         * @return the group sample standard deviations, 0.0 for groups with fewer than two values
+         */
+        public double[] getStandardDeviations() {
+            double[] sd = new double[n.length];
+            for (int g=0; g<n.length; g++) {
+                sd[g] = (n[g]>1) ? Math.sqrt(m2[g]/(n[g]-1)) : 0.0;
+            }
+            return sd;
+        }
+
+        /**
+         * @return the number of values in each group
+         */
+        public int[] getCounts() {
+            return n.clone();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.ncgr.intermine.web.logic;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import org.json.JSONWriter;
+
+/**
+ * Runs the offline ExpressionStore and GenotypeStore exports off the request thread. Exports go one at a time on a
+ * single background thread, since each one already reads a whole source, population or study; the superuser's
+ * request returns a job id straight away and polls for progress. Jobs are forgotten a while after they finish.
+ *
+ * @author Sam Hokin
+ */
+public class StoreExportJobs {
+
+    protected static final Logger LOG = Logger.getLogger(StoreExportJobs.class);
+
+    static final long JOB_TTL_MILLIS = 24L*60L*60L*1000L;
+
+    private static StoreExportJobs instance;
+
+    private final ExecutorService executor;
+    private final Map<String,Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * The work of one job, which reports each exported item to the job as it goes.
+     */
+    public interface Export {
+        void run(Job job) throws Exception;
+    }
+
+    StoreExportJobs() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "store-export");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /**
+     * @return the shared job runner
+     */
+    public static synchronized StoreExportJobs getInstance() {
+        if (instance==null) {
+            instance = new StoreExportJobs();
+        }
+        return instance;
+    }
+
+    /**
+     * Queue an export.
+     *
+     * @param description what is being exported, for the status report and log
+     * @param export the export
+     * @return the job, which is queued or already running
+     */
+    public Job submit(String description, final Export export) {
+        expire();
+        final Job job = new Job(UUID.randomUUID().toString(), description);
+        jobs.put(job.id, job);
+        executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    job.startTime = System.currentTimeMillis();
+                    job.state = State.RUNNING;
+                    try {
+                        export.run(job);
+                        job.state = State.DONE;
+                    } catch (Exception e) {
+                        LOG.error("Export "+job.description+" failed: "+e.toString());
+                        job.errors.add(e.toString());
+                        job.state = State.FAILED;
+                    } finally {
+                        job.finishTime = System.currentTimeMillis();
+                        LOG.info("Export "+job.description+" "+job.state.getName()+": "+job.exported.size()+" exported, "+job.errors.size()+
+                                 " errors, in "+(job.finishTime-job.startTime)+" ms.");
+                    }
+                }
+            });
+        return job;
+    }
+
+    /**
+     * @param id the job id
+     * @return the job, or null if it's unknown or has expired
+     */
+    public Job getJob(String id) {
+        return (id==null) ? null : jobs.get(id);
+    }
+
+    /**
+     * Forget jobs that finished more than JOB_TTL_MILLIS ago.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+            Job job = it.next();
+            if (job.isDone() && now-job.finishTime>JOB_TTL_MILLIS) it.remove();
+        }
+    }
+
+    /**
+     * The state of a job.
+     */
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * An export of one or more sources, populations or studies.
+     */
+    public static class Job {
+        final String id;
+        final String description;
+        final List<String> exported = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        volatile State state = State.QUEUED;
+        volatile int total = -1;
+        volatile long startTime = 0;
+        volatile long finishTime = 0;
+
+        Job(String id, String description) {
+            this.id = id;
+            this.description = description;
+        }
+
+        /**
+         * @param total the number of items the export will write, once known
+         */
+        public void setTotal(int total) {
+            this.total = total;
+        }
+
+        /**
+         * Record a finished item.
+         *
+         * @param item the exported identifier
+         */
+        public void exported(String item) {
+            exported.add(item);
+        }
+
+        /**
+         * Record an item that couldn't be exported; the export carries on with the rest.
+         *
+         * @param item the identifier
+         * @param message the error
+         */
+        public void failed(String item, String message) {
+            errors.add(item+": "+message);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return true if the job has finished or failed
+         */
+        public boolean isDone() {
+            return state==State.DONE || state==State.FAILED;
+        }
+
+        /**
+         * @return the job status, {"job":..,"description":..,"state":..,"total":..,"exported":[...],"errors":[...],"millis":..}
+         */
+        public String toJSON() {
+            StringWriter json = new StringWriter();
+            JSONWriter writer = new JSONWriter(json);
+            writer.object();
+            writer.key("job").value(id);
+            writer.key("description").value(description);
+            writer.key("state").value(state.getName());
+            writer.key("total").value(total);
+            writer.key("exported");
+            writer.array();
+            synchronized (exported) {
+                for (String item : exported) writer.value(item);
+            }
+            writer.endArray();
+            writer.key("errors");
+            writer.array();
+            synchronized (errors) {
+                for (String error : errors) writer.value(error);
+            }
+            writer.endArray();
+            long end = (finishTime>0) ? finishTime : System.currentTimeMillis();
+            writer.key("millis").value((startTime>0) ? end-startTime : 0);
+            writer.endObject();
+            return json.toString();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.ncgr.intermine.web.logic;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the K most variable genes of a source as their rows stream in, so that a heat map of a very large list is
+ * capped at K rows no matter how many genes the list holds. Each row is scored in a single pass (Welford's method)
+ * and offered to a min-heap of size K; rows that don't make the cut are handed back to the caller for reuse, so at
+ * most K+1 rows are ever held.
+ *
+ * @author Sam Hokin
+ */
+public class TopVariableGenes {
+
+    /**
+     * How a gene row is scored.
+     */
+    public enum Score {
+        /** the population variance of the row */
+        VARIANCE,
+        /** the coefficient of variation of the row, standard deviation over |mean|, zero if the mean is zero */
+        CV;
+
+        /**
+         * @param name "variance" or "cv", case-insensitive
+         * @return the score, VARIANCE if name is null or unrecognized
+         */
+        public static Score fromString(String name) {
+            return (name!=null && name.trim().equalsIgnoreCase("cv")) ? CV : VARIANCE;
+        }
+    }
+
+    // lowest score first, then latest arrival, so ties keep the genes that arrived first
+    static final Comparator<Gene> HEAP_ORDER = new Comparator<Gene>() {
+            @Override
+            public int compare(Gene a, Gene b) {
+                int c = Double.compare(a.score, b.score);
+                return (c!=0) ? c : Integer.compare(b.ordinal, a.ordinal);
+            }
+        };
+
+    final int k;
+    final Score score;
+    final PriorityQueue<Gene> heap;
+    int geneCount = 0;
+
+    /**
+     * @param k the number of genes to keep, at least 1
+     * @param score how to score the rows
+     */
+    public TopVariableGenes(int k, Score score) {
+        if (k<1) throw new IllegalArgumentException("k must be at least 1: "+k);
+        this.k = k;
+        this.score = score;
+        this.heap = new PriorityQueue<>(k+1, HEAP_ORDER);
+    }
+
+    /**
+     * Offer a gene row. The selector takes ownership of the row if it's kept.
+     *
+     * @param geneName the Gene.name
+     * @param genePrimaryID the Gene.primaryIdentifier
+     * @param geneDescription the Gene.description
+     * @param row the gene's values, one per sample
+     * @return a row array the caller may reuse for the next gene, or null if the caller must allocate a new one
+     */
+    public double[] offer(String geneName, String genePrimaryID, String geneDescription, double[] row) {
+        return offer(geneName, genePrimaryID, geneDescription, row, null);
+    }
+
+    /**
+     * Offer a gene row some of whose samples have no value. The selector takes ownership of the row if it's kept, and
+     * keeps a copy of present, so the caller may reuse it.
+     *
+     * @param geneName the Gene.name
+     * @param genePrimaryID the Gene.primaryIdentifier
+     * @param geneDescription the Gene.description
+     * @param row the gene's values, one per sample, 0.0 where missing
+     * @param present the samples that have a value, or null if all of them do
+     * @return a row array the caller may reuse for the next gene, or null if the caller must allocate a new one
+     */
+    public double[] offer(String geneName, String genePrimaryID, String geneDescription, double[] row, BitSet present) {
+        Gene gene = new Gene(geneName, genePrimaryID, geneDescription, row, score(row, present, score), geneCount++);
+        if (heap.size()<k) {
+            gene.keep(present);
+            heap.add(gene);
+            return null;
+        }
+        if (HEAP_ORDER.compare(gene, heap.peek())<=0) {
+            // didn't make the cut
+            return row;
+        }
+        gene.keep(present);
+        heap.add(gene);
+        return heap.poll().row;
+    }
+
+    /**
+     * @return the number of genes offered so far
+     */
+    public int getGeneCount() {
+        return geneCount;
+    }
+
+    /**
+     * @return the number of genes kept, at most K
+     */
+    public int getSelectedCount() {
+        return heap.size();
+    }
+
+    /**
+     * Build the matrix of the kept genes, in the order they arrived, and fill in their identifier and description maps.
+     *
+     * @param sampleNames the sample names, in column order
+     * @param genePrimaryIDMap filled with Gene.name to Gene.primaryIdentifier for the kept genes
+     * @param geneDescriptionMap filled with Gene.name to Gene.description for the kept genes
+     * @return the matrix
+     */
+    public ExpressionMatrix toMatrix(List<String> sampleNames, Map<String,String> genePrimaryIDMap, Map<String,String> geneDescriptionMap) {
+        List<Gene> genes = new ArrayList<>(heap);
+        Collections.sort(genes, new Comparator<Gene>() {
+                @Override
+                public int compare(Gene a, Gene b) {
+                    return Integer.compare(a.ordinal, b.ordinal);
+                }
+            });
+        ExpressionMatrix matrix = new ExpressionMatrix(sampleNames);
+        for (Gene gene : genes) {
+            if (!genePrimaryIDMap.containsKey(gene.name)) {
+                genePrimaryIDMap.put(gene.name, gene.primaryID);
+                geneDescriptionMap.put(gene.name, gene.description);
+            }
+            int i = matrix.addGene(gene.name);
+            for (int j=0; j<gene.row.length; j++) {
+                if (gene.present==null || gene.present.get(j)) matrix.set(i, j, gene.row[j]);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Score a row in a single pass using Welford's running mean and variance.
+     *
+     * @param row the values
+     * @param score the score to compute
+     * @return the score
+     */
+    public static double score(double[] row, Score score) {
+        return score(row, null, score);
+    }
+
+    /**
+     * Score the present values of a row in a single pass using Welford's running mean and variance; a row with no
+     * present values scores zero.
+     *
+     * @param row the values
+     * @param present the samples that have a value, or null if all of them do
+     * @param score the score to compute
+     * @return the score
+     */
+    public static double score(double[] row, BitSet present, Score score) {
+        double mean = 0.0;
+        double m2 = 0.0;
+        int n = 0;
+        for (int j=0; j<row.length; j++) {
+            if (present!=null && !present.get(j)) continue;
+            n++;
+            double delta = row[j]-mean;
+            mean += delta/n;
+            m2 += delta*(row[j]-mean);
+        }
+        if (n==0) return 0.0;
+        double variance = m2/n;
+        if (score==Score.CV) {
+            return (mean==0.0) ? 0.0 : Math.sqrt(variance)/Math.abs(mean);
+        }
+        return variance;
+    }
+
+    /**
+     * A scored gene row.
+     */
+    static class Gene {
+        final String name;
+        final String primaryID;
+        final String description;
+        final double[] row;
+        final double score;
+        final int ordinal;
+        // the samples that have a value, or null if all of them do
+        BitSet present;
+
+        Gene(String name, String primaryID, String description, double[] row, double score, int ordinal) {
+            this.name = name;
+            this.primaryID = primaryID;
+            this.description = description;
+            this.row = row;
+            this.score = score;
+            this.ordinal = ordinal;
+        }
+
+        void keep(BitSet present) {
+            this.present = (present==null) ? null : (BitSet) present.clone();
+        }
+    }
+}